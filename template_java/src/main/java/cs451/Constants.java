@@ -1,5 +1,9 @@
 package cs451;
 
+import cs451.perfect_links.BatchingPolicy;
+import cs451.perfect_links.MessageFragment;
+import cs451.perfect_links.Packet;
+
 public class Constants {
     public static final int ARG_LIMIT_CONFIG = 7;
 
@@ -20,15 +24,61 @@ public class Constants {
 
     // maximum size of a packet in bytes including metadata
     public static final int MAX_PACKET_SIZE = 65_000;
+    // size packets are filled up to, should fit in the path MTU (minus 28 bytes of IP and UDP headers)
+    // so that a lost IP fragment doesn't cost a whole packet, e.g. 8_900 with jumbo frames, at most MAX_PACKET_SIZE
+    public static final int PL_DATAGRAM_SIZE = 1_400;
 
 
     // perfect links parameters
+    public static final int PL_NUM_SOCKETS = 1; // > 1 opens that many sockets on the same port using SO_REUSEPORT
+    public static final boolean PL_EVENT_LOOP = false; // a single thread does all the work of the perfect links, see EventLoop
+    public static final int PL_EVENT_LOOP_RECEIVE_BATCH_SIZE = 64; // packets read from a channel before looking at anything else
     public static final int PL_NUM_SENDER_THREADS = 2;
     public static final int PL_SENDING_INTERVAL = 10; // ms
-    public static final int PL_SENDING_BATCH_SIZE = 100;
-    public static final int PL_MIN_ACKS_PER_PACKET = 100;
+    public static final BatchingPolicy PL_BATCHING_POLICY = BatchingPolicy.THROUGHPUT;
+    public static final int PL_LINGER = 5; // ms, longest a fragment or ack waits for a fuller packet in THROUGHPUT mode
+    public static final int PL_INITIAL_RTO = 100; // ms, before the first rtt sample
+    public static final int PL_MIN_RTO = 20; // ms, must exceed the ack delay of PL_LINGER
+    public static final int PL_MAX_RTO = 2_000; // ms
+    public static final int PL_INITIAL_CONGESTION_WINDOW = 16; // packets
+    public static final int PL_MIN_CONGESTION_WINDOW = 2; // packets
+    public static final int PL_MAX_CONGESTION_WINDOW = 4_096; // packets
+    public static final int PL_SENDING_BATCH_SIZE = 100; // retransmissions per run
+    public static final int PL_TIMER_WHEEL_SLOTS = 512; // power of 2, ticks of the sending interval per rotation
+    public static final int PL_MIN_ACKS_PER_PACKET = 100; // THROUGHPUT mode
+    public static final int PL_PIGGYBACK_SACK_LENGTH = 128; // bytes of sack bitmap carried by normal packets
+    public static final boolean PL_COMPRESSION = false; // deflates the fragments of packets whenever that makes them smaller
+    public static final int PL_COMPRESSION_LEVEL = 1; // 1 (fastest) to 9 (smallest)
+    public static final int PL_MIN_COMPRESSION_SIZE = 128; // bytes of fragments, smaller packets are sent as they are
     public static final int PL_NUM_RECEIVER_THREADS = 2;
+    public static final int PL_RECEIVE_QUEUE_SIZE = 32; // packets waiting per receiver thread
+    public static final int PL_BUFFER_POOL_SIZE = 64; // direct buffers of MAX_PACKET_SIZE retained for receiving
+    public static final int PL_MAX_UNACKNOWLEDGED_BYTES = 16 << 20; // of messages per destination, PerfectLink.send waits beyond
+    public static final int PL_SEND_BUFFER_POOL_BYTES = 8 << 20; // direct buffers of PL_DATAGRAM_SIZE retained for sending
+    public static final int PL_MAX_MESSAGE_LENGTH = 64 << 20; // bytes, longer ones are refused by send and dropped by receivers
+    public static final long PL_REASSEMBLY_BUDGET_BYTES = 64 << 20; // of partially received messages, in-order packets are always let through, at least PL_MAX_MESSAGE_LENGTH
+    public static final int PL_STREAMING_MIN_LENGTH = 1 << 20; // bytes, larger messages go to the MessageSink if there is one
+    public static final int PL_RECEIVE_WINDOW_SIZE = 1 << 16; // packets per source, power of 2
+
+    // a packet must have room for some data after the largest header and fragment metadata,
+    // otherwise packets could be sent with no fragment at all
+    static {
+        if (PL_DATAGRAM_SIZE <= Packet.MAX_METADATA_SIZE + PL_PIGGYBACK_SACK_LENGTH + MessageFragment.MAX_METADATA_LENGTH) {
+            throw new IllegalStateException("PL_DATAGRAM_SIZE leaves no room for data after the header and the piggybacked sack");
+        }
+    }
 
     // uniform reliable broadcast parameters
-    public static final int URB_SENDING_BATCH_SIZE = 2; // also applies to FIFO
+    public static final int URB_INITIAL_WINDOW = 2; // own messages undelivered at once, also applies to FIFO
+    public static final int URB_MIN_WINDOW = 1;
+    public static final int URB_MAX_WINDOW = 4_096;
+    public static final int URB_BACKLOG_DELAY = 20; // ms, of delivery latency above twice the lowest seen, shrinks the window
+    // relays only acknowledge messages, those who missed one pull it, this saves bandwidth but each process
+    // must keep the DATA of what it delivered until everyone acknowledged it, which never happens once a
+    // process crashed, so only the last URB_MAX_RETAINED deliveries are kept and a process that still
+    // misses an older message after that can no longer get it, the default relaying keeps nothing
+    public static final boolean URB_ACK_ONLY_RELAY = false;
+    public static final int URB_MAX_RETAINED = 1 << 16; // delivered messages kept for pulls, power of 2
+    public static final int URB_PULL_DELAY = 50; // ms, a payload is pulled once it has been missing that long since it was last heard of
+    public static final int URB_MAX_DELIVERY_GAP = 1 << 24; // messages per source, power of 2, bounds the delivered bitmap
 }
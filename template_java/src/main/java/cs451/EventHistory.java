@@ -7,13 +7,13 @@ import java.io.IOException;
 public class EventHistory {
     private final StringBuilder builder = new StringBuilder();
 
-    public void logBroadcast(int seqNr) {
+    public synchronized void logBroadcast(int seqNr) {
         builder.append("b ");
         builder.append(seqNr);
         builder.append("\n");
     }
 
-    public void logDelivery(int senderId, int seqNr) {
+    public synchronized void logDelivery(int senderId, int seqNr) {
         builder.append("d ");
         builder.append(senderId);
         builder.append(" ");
@@ -21,7 +21,7 @@ public class EventHistory {
         builder.append("\n");
     }
 
-    public void writeToFile(String filePath) {
+    public synchronized void writeToFile(String filePath) {
         String contents = builder.toString();
 
         try {
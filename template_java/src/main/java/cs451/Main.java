@@ -7,9 +7,12 @@ import cs451.uniform_reliable_broadcast.URB;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Main {
@@ -67,6 +70,25 @@ public class Main {
         }
     }
 
+    // opens PL_NUM_SOCKETS channels bound to the same port, with SO_REUSEPORT
+    // the kernel spreads incoming datagrams across them
+    private static List<DatagramChannel> openChannels(int port) {
+        List<DatagramChannel> channels = new ArrayList<>();
+        try {
+            for (int i = 0; i < Constants.PL_NUM_SOCKETS; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                if (Constants.PL_NUM_SOCKETS > 1) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(port));
+                channels.add(channel);
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        return channels;
+    }
+
     private static void runPerfectLinksTest(Parser parser, int myPort, Map<Integer, FullAddress> addresses) {
         System.out.println("Doing some initialization\n");
         int numMessages;
@@ -83,13 +105,7 @@ public class Main {
         // find out who the receiver is
         boolean isReceiver = parser.myId() == receiverId;
 
-        DatagramSocket socket;
-        try {
-            socket = new DatagramSocket(myPort);
-            socket.setSoTimeout(10);
-        } catch (SocketException e) {
-            throw new Error(e);
-        }
+        List<DatagramChannel> channels = openChannels(myPort);
 
 
         System.out.println("Broadcasting and delivering messages...\n");
@@ -101,30 +117,33 @@ public class Main {
         int[] totalMessages = {0};
 
         System.out.println("begin listening");
-        PerfectLink perfectLink = new PerfectLink(parser.myId(), addresses, socket, delivered -> {
-            eventHistory.logDelivery(delivered.sourceId, delivered.messageId);
+        PerfectLink perfectLink = new PerfectLink(parser.myId(), addresses, channels, delivered -> {
+            // deliveries from different sources can happen concurrently
+            synchronized (totalMessages) {
+                eventHistory.logDelivery(delivered.sourceId, delivered.messageId);
 
-//            System.out.println("deliver " + delivered.getText());
+//                System.out.println("deliver " + delivered.getText());
 
-            // for debug
-            totalMessages[0] += 1;
-            int tm = totalMessages[0];
-            if (tm % 100_000 == 0
-                    || expectedMessages - tm < 1000 && tm % 100 == 0
-                    || expectedMessages - tm < 100) {
-                System.out.println("total: " + totalMessages[0]);
-            }
-            if (totalMessages[0] == expectedMessages) {
-                long end = System.nanoTime();
-                if (isReceiver) {
-                    System.out.println("total number of messages received: " + totalMessages[0]);
-                    System.out.println("time taken: " + (end - start) / 1_000_000 + "ms");
-                    System.out.println("messages/s: " + ((long) (totalMessages[0] * 1e9) / (end - start)));
+                // for debug
+                totalMessages[0] += 1;
+                int tm = totalMessages[0];
+                if (tm % 100_000 == 0
+                        || expectedMessages - tm < 1000 && tm % 100 == 0
+                        || expectedMessages - tm < 100) {
+                    System.out.println("total: " + totalMessages[0]);
+                }
+                if (totalMessages[0] == expectedMessages) {
+                    long end = System.nanoTime();
+                    if (isReceiver) {
+                        System.out.println("total number of messages received: " + totalMessages[0]);
+                        System.out.println("time taken: " + (end - start) / 1_000_000 + "ms");
+                        System.out.println("messages/s: " + ((long) (totalMessages[0] * 1e9) / (end - start)));
+                    }
+                }
+                if (totalMessages[0] > expectedMessages) {
+                    System.out.println("ok, this is not funny anymore");
+                    System.exit(1);
                 }
-            }
-            if (totalMessages[0] > expectedMessages) {
-                System.out.println("ok, this is not funny anymore");
-                System.exit(1);
             }
         });
 
@@ -150,13 +169,7 @@ public class Main {
             throw new Error(e);
         }
 
-        DatagramSocket socket;
-        try {
-            socket = new DatagramSocket(myPort);
-            socket.setSoTimeout(10);
-        } catch (SocketException e) {
-            throw new Error(e);
-        }
+        List<DatagramChannel> channels = openChannels(myPort);
 
 
         long[] start = {-1};
@@ -166,7 +179,7 @@ public class Main {
         int expectedMessages = numMessages * parser.hosts().size();
         System.out.println("Expecting " + expectedMessages + " messages");
         int[] totalMessages = new int[] {0};
-        FIFO fifo = new FIFO(parser.myId(), addresses, socket, delivered -> {
+        FIFO fifo = new FIFO(parser.myId(), addresses, channels, delivered -> {
             eventHistory.logDelivery(delivered.sourceId, delivered.messageId);
 
             if (start[0] < 0) {
@@ -0,0 +1,33 @@
+package cs451.base;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// thread safe pool of reusable direct buffers of a fixed capacity,
+// buffers use the same byte order as BigEndianCoder
+public final class BufferPool {
+    private final int bufferCapacity;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    // retains at most maxRetained free buffers, any extra released buffers are dropped
+    public BufferPool(int bufferCapacity, int maxRetained) {
+        this.bufferCapacity = bufferCapacity;
+        this.free = new ArrayBlockingQueue<>(maxRetained);
+    }
+
+    // returns a cleared buffer, only allocates when the pool is empty
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferCapacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    // the buffer must not be used after it has been released
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+}
@@ -0,0 +1,146 @@
+package cs451.base;
+
+// open addressing hash map from primitive longs to objects, linear probing with
+// backward shift deletion so no tombstones pile up under heavy insert/remove churn,
+// nothing is allocated except when growing, not thread safe
+public final class LongObjectMap<V> {
+    private long[] keys;
+    private Object[] values; // null marks an empty slot
+    private int mask;
+    private int size = 0;
+
+    public LongObjectMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) * 2;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E37_79B9_7F4A_7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slotOf(long key) {
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int slot = slotOf(key);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    // returns the previous value, if any, value must not be null
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        if (size * 2 > values.length) {
+            grow();
+        }
+        return null;
+    }
+
+    // returns the removed value, if any
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int slot = slotOf(key);
+        if (slot < 0) {
+            return null;
+        }
+        V removed = (V) values[slot];
+        removeAt(slot);
+        return removed;
+    }
+
+    // shifts the following entries of the probe sequence back into the hole
+    private void removeAt(int hole) {
+        values[hole] = null;
+        size--;
+
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == null) {
+                return;
+            }
+
+            int ideal = hash(keys[slot]) & mask;
+            boolean reachable = hole <= slot
+                    ? hole < ideal && ideal <= slot
+                    : hole < ideal || ideal <= slot;
+            if (!reachable) {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                values[slot] = null;
+                hole = slot;
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = values.length - 1;
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // iteration is done directly over the slots: for slot in [0, capacity()), valueAt(slot)
+    // returns null for empty slots, the map must not be modified while iterating
+    public int capacity() {
+        return values.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    // only meaningful for slots that aren't empty
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+}
@@ -0,0 +1,91 @@
+package cs451.base;
+
+// set of sequence numbers (starting at 1) that arrive roughly in order, stored as a
+// watermark below which everything is present plus a ring bitmap for the ids above it,
+// memory only depends on how far ahead of the watermark ids arrive, not on how many
+// there were, the ring grows on demand up to maxCapacity bits, not thread safe
+public final class SequenceSet {
+    private final int maxCapacity;
+
+    // every id strictly below watermark is present
+    private int watermark = 1;
+    // highest id present so far
+    private int highest = 0;
+    // bit (id & mask) is set iff id is present, valid for watermark <= id < watermark + capacity
+    private long[] bits;
+    private int mask;
+
+    // both capacities are in ids and must be powers of 2 >= 64
+    public SequenceSet(int initialCapacity, int maxCapacity) {
+        if (Integer.bitCount(initialCapacity) != 1 || initialCapacity < 64 || Integer.bitCount(maxCapacity) != 1 || maxCapacity < initialCapacity) {
+            throw new IllegalArgumentException("invalid capacities " + initialCapacity + ", " + maxCapacity);
+        }
+        this.maxCapacity = maxCapacity;
+        this.bits = new long[initialCapacity / 64];
+        this.mask = initialCapacity - 1;
+    }
+
+    private boolean isSet(int id) {
+        int idx = id & mask;
+        return (bits[idx >>> 6] & (1L << idx)) != 0;
+    }
+
+    public boolean contains(int id) {
+        return id < watermark || (id - watermark <= mask && isSet(id));
+    }
+
+    // returns true iff the id was not present and has been added, ids that
+    // lie beyond maxCapacity above the watermark are rejected
+    public boolean add(int id) {
+        if (id < watermark) {
+            return false;
+        }
+        while (id - watermark > mask) {
+            if (mask + 1 >= maxCapacity) {
+                return false;
+            }
+            grow();
+        }
+        if (isSet(id)) {
+            return false;
+        }
+
+        if (id == watermark) {
+            watermark++;
+            while (watermark <= highest && isSet(watermark)) {
+                int idx = watermark & mask;
+                bits[idx >>> 6] &= ~(1L << idx);
+                watermark++;
+            }
+        } else {
+            int idx = id & mask;
+            bits[idx >>> 6] |= 1L << idx;
+        }
+        highest = Math.max(highest, id);
+
+        return true;
+    }
+
+    private void grow() {
+        long[] oldBits = bits;
+        int oldMask = mask;
+        bits = new long[oldBits.length * 2];
+        mask = oldMask * 2 + 1;
+
+        for (int id = watermark + 1; id <= highest; id++) {
+            int oldIdx = id & oldMask;
+            if ((oldBits[oldIdx >>> 6] & (1L << oldIdx)) != 0) {
+                int idx = id & mask;
+                bits[idx >>> 6] |= 1L << idx;
+            }
+        }
+    }
+
+    public int watermark() {
+        return watermark;
+    }
+
+    public int highest() {
+        return highest;
+    }
+}
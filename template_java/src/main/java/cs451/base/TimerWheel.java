@@ -0,0 +1,105 @@
+package cs451.base;
+
+// hashed timing wheel: timers are hashed by deadline into a ring of slots covering one tick each,
+// scheduling and cancelling are O(1) and expiring only touches the slots of the ticks that have
+// passed, timers more than a rotation ahead wait for a number of extra rounds in their slot,
+// deadlines are rounded up to the next tick, times are in ns as given by System.nanoTime(),
+// not thread safe
+public final class TimerWheel<T extends TimerWheel.Timer> {
+    // embedded in the scheduled objects so that scheduling doesn't allocate
+    public static class Timer {
+        private Timer prev;
+        private Timer next;
+        private int slot = -1; // -1 while not scheduled
+        private long rounds;
+
+        public final boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final Timer[] slots; // head of each doubly linked list
+    private final int mask;
+    private final long tickNanos;
+    private final long origin;
+    private long nextTick = 0; // every earlier tick has been expired
+
+    // the number of slots must be a power of 2
+    public TimerWheel(int numSlots, long tickNanos, long now) {
+        if (Integer.bitCount(numSlots) != 1 || tickNanos <= 0) {
+            throw new IllegalArgumentException("invalid wheel " + numSlots + " x " + tickNanos + "ns");
+        }
+        this.slots = new Timer[numSlots];
+        this.mask = numSlots - 1;
+        this.tickNanos = tickNanos;
+        this.origin = now;
+    }
+
+    // (re)schedules the timer, a deadline in the past expires on the next call to expire()
+    public void schedule(T scheduled, long deadline) {
+        cancel(scheduled);
+        Timer timer = scheduled;
+        long tick = Math.max(Math.floorDiv(deadline - origin + tickNanos - 1, tickNanos), nextTick);
+        timer.rounds = (tick - nextTick) / slots.length;
+        link(timer, (int) (tick & mask));
+    }
+
+    public void cancel(T cancelled) {
+        Timer timer = cancelled;
+        if (!timer.isScheduled()) {
+            return;
+        }
+        if (timer.prev == null) {
+            slots[timer.slot] = timer.next;
+        } else {
+            timer.prev.next = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+    }
+
+    // unschedules the timers whose deadline has passed and puts them in out, those that
+    // don't fit are pushed back to the next tick, returns how many have been put in out
+    @SuppressWarnings("unchecked")
+    public int expire(long now, T[] out) {
+        long lastTick = Math.floorDiv(now - origin, tickNanos);
+        int count = 0;
+        for (; nextTick <= lastTick; nextTick++) {
+            int slot = (int) (nextTick & mask);
+            Timer timer = slots[slot];
+            slots[slot] = null;
+
+            while (timer != null) {
+                Timer next = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                timer.slot = -1;
+
+                if (timer.rounds > 0) {
+                    timer.rounds--;
+                    link(timer, slot);
+                } else if (count < out.length) {
+                    out[count++] = (T) timer;
+                } else {
+                    link(timer, (int) ((lastTick + 1) & mask));
+                }
+                timer = next;
+            }
+        }
+        return count;
+    }
+
+    private void link(Timer timer, int slot) {
+        Timer head = slots[slot];
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        slots[slot] = timer;
+        timer.slot = slot;
+    }
+}
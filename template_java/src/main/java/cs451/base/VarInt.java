@@ -0,0 +1,71 @@
+package cs451.base;
+
+import java.nio.ByteBuffer;
+
+// variable length encoding of ints, 7 bits per byte, least significant group first,
+// the high bit of a byte is set iff another byte follows, values are treated as
+// unsigned so small non-negative ones are short, use zigzag() for signed ones,
+// decoding relies on the encoding being minimal, which encode/put always produce
+public final class VarInt {
+    public static final int MAX_SIZE = 5; // bytes
+
+    // number of bytes used by the encoding of value
+    public static int size(int value) {
+        int bits = 32 - Integer.numberOfLeadingZeros(value | 1);
+        return (bits + 6) / 7;
+    }
+
+    // maps small negative values to small positive ones: 0, -1, 1, -2, 2... -> 0, 1, 2, 3, 4...
+    public static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // writes at the buffer's position
+    public static void put(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // reads at an absolute index, the encoding is size() bytes long
+    public static int get(ByteBuffer buffer, int index) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get(index++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("varint too long");
+    }
+
+    // encode directly into a large array, returns the position after the value
+    public static int encode(int value, byte[] array, int startPosition) {
+        while ((value & ~0x7F) != 0) {
+            array[startPosition++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        array[startPosition++] = (byte) value;
+        return startPosition;
+    }
+
+    // decode directly from a large array, the encoding is size() bytes long
+    public static int decode(byte[] array, int startPosition) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = array[startPosition++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("varint too long");
+    }
+}
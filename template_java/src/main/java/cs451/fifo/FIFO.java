@@ -4,8 +4,9 @@ import cs451.base.FullAddress;
 import cs451.message.FIFOMessage;
 import cs451.uniform_reliable_broadcast.URB;
 
-import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -13,8 +14,8 @@ import java.util.concurrent.PriorityBlockingQueue;
 import java.util.function.Consumer;
 
 class DeliveryQueue {
-    // FIFO enforcement
-    private int nextDeliveryId = 0;
+    // FIFO enforcement, URB message ids start at 1
+    private int nextDeliveryId = 1;
     private final Queue<FIFOMessage> queue = new PriorityBlockingQueue<>(100, Comparator.comparing(message -> message.messageId));
     private final Consumer<FIFOMessage> deliverCallback;
 
@@ -42,8 +43,8 @@ public class FIFO {
     // priority queues containing (urbMessageId, message) sorted by urbMessageId, messages waiting to be delivered in order, indexed by urbSourceId
     private final Map<Integer, DeliveryQueue> deliveryQueues = new ConcurrentHashMap<>();
 
-    public FIFO(int processId, Map<Integer, FullAddress> addresses, DatagramSocket socket, Consumer<FIFOMessage> deliverCallback) {
-        this.urb = new URB(processId, addresses, socket, urbMessage -> {
+    public FIFO(int processId, Map<Integer, FullAddress> addresses, List<DatagramChannel> channels, Consumer<FIFOMessage> deliverCallback) {
+        this.urb = new URB(processId, addresses, channels, urbMessage -> {
             deliveryQueues
                     .computeIfAbsent(urbMessage.sourceId, ignored -> new DeliveryQueue(deliverCallback))
                     .deliver(new FIFOMessage(urbMessage));
@@ -0,0 +1,34 @@
+package cs451.perfect_links;
+
+import cs451.Constants;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// how long a SendQueue holds back fragments and acks to fill packets,
+// a packet leaves once its content reaches the size target or once the
+// oldest part of it has waited for the linger deadline, whichever comes first
+public enum BatchingPolicy {
+    // everything is sent right away, fragments only get batched together
+    // while the congestion window is full
+    LOW_LATENCY(0, 0, 1),
+    // packets are filled up to the datagram size, leftovers wait for the linger deadline
+    THROUGHPUT(Constants.PL_DATAGRAM_SIZE, Constants.PL_LINGER, Constants.PL_MIN_ACKS_PER_PACKET);
+
+    final int targetPacketSize; // bytes of queued fragments
+    final int lingerMillis;
+    final long lingerNanos;
+    final int acksPerPacket;
+
+    BatchingPolicy(int targetPacketSize, int lingerMillis, int acksPerPacket) {
+        this.targetPacketSize = targetPacketSize;
+        this.lingerMillis = lingerMillis;
+        this.lingerNanos = MILLISECONDS.toNanos(lingerMillis);
+        this.acksPerPacket = acksPerPacket;
+    }
+
+    // how often the SendThread has to look for expired linger deadlines,
+    // without lingering there is nothing to look for besides retransmissions
+    int flushInterval() {
+        return lingerMillis > 0 ? Math.min(lingerMillis, Constants.PL_SENDING_INTERVAL) : Constants.PL_SENDING_INTERVAL;
+    }
+}
@@ -0,0 +1,55 @@
+package cs451.perfect_links;
+
+import cs451.Constants;
+
+// AIMD congestion control for a single destination, counted in packets,
+// starts in slow start and halves the window on retransmission timeouts
+// (at most once per window of packets), not thread safe, guarded by its SendQueue
+public class CongestionWindow {
+    private static final int MIN_WINDOW = Constants.PL_MIN_CONGESTION_WINDOW;
+    // the receiver would drop anything beyond its window anyway
+    private static final int MAX_WINDOW = Math.min(Constants.PL_MAX_CONGESTION_WINDOW, Constants.PL_RECEIVE_WINDOW_SIZE);
+
+    private double window = Constants.PL_INITIAL_CONGESTION_WINDOW;
+    private double slowStartThreshold = MAX_WINDOW;
+
+    // packets sent but not yet acknowledged
+    private int inFlight = 0;
+    // losses of packets below this id belong to a window that was already reduced
+    private int recoveryPoint = 0;
+
+    public boolean hasRoom() {
+        return inFlight < (int) window;
+    }
+
+    public void onSend() {
+        inFlight++;
+    }
+
+    // inFlight is recomputed from the acknowledgement itself, which
+    // makes it robust against lost and reordered ack packets
+    public void onAcknowledged(int newlyAcknowledged, int inFlight) {
+        this.inFlight = inFlight;
+        if (newlyAcknowledged <= 0) {
+            return;
+        }
+
+        if (window < slowStartThreshold) {
+            window += newlyAcknowledged;
+        } else {
+            window += newlyAcknowledged / window;
+        }
+        window = Math.min(window, MAX_WINDOW);
+    }
+
+    // nextPacketId is the id the next new packet will get
+    public void onLoss(int packetId, int nextPacketId) {
+        if (packetId < recoveryPoint) {
+            return;
+        }
+
+        slowStartThreshold = Math.max(window / 2, MIN_WINDOW);
+        window = slowStartThreshold;
+        recoveryPoint = nextPacketId;
+    }
+}
@@ -0,0 +1,125 @@
+package cs451.perfect_links;
+
+import cs451.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// single threaded alternative to the ReceiveThreads, ReceiveWorkers and the SendThread's
+// own threads: the channels are multiplexed with a Selector and this thread does everything,
+// handling received packets, running the periodic SendThread task and putting queued packets
+// on the wire, so the per-destination state is only ever touched by it and its monitors are
+// never contended, other threads hand it work through submit()
+class EventLoop extends Thread {
+    private final Selector selector;
+    private final SendThread sendThread;
+    private final int interval; // ms between runs of the SendThread task
+    private final ByteBuffer receiveBuffer;
+    private final Consumer<ByteBuffer> handler;
+
+    private final Queue<Runnable> submissions = new ConcurrentLinkedQueue<>();
+    private boolean waitingToWrite = false; // the lanes couldn't be emptied without blocking
+
+    EventLoop(List<DatagramChannel> channels, SendThread sendThread, int interval, ByteBuffer receiveBuffer, Consumer<ByteBuffer> handler) throws IOException {
+        this.selector = Selector.open();
+        this.sendThread = sendThread;
+        this.interval = interval;
+        this.receiveBuffer = receiveBuffer;
+        this.handler = handler;
+
+        for (DatagramChannel channel : channels) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+        // keeps the process alive, like the ReceiveThreads
+        setName("event-loop");
+    }
+
+    // runs the task on the loop thread as soon as possible
+    void submit(Runnable task) {
+        submissions.offer(task);
+        selector.wakeup();
+    }
+
+    boolean isLoopThread() {
+        return Thread.currentThread() == this;
+    }
+
+    @Override
+    public void run() {
+        long nextRun = System.nanoTime();
+        try {
+            while (!isInterrupted()) {
+                long now = System.nanoTime();
+                if (now - nextRun >= 0) {
+                    sendThread.run();
+                    nextRun = now + MILLISECONDS.toNanos(interval);
+                }
+
+                Runnable task;
+                while ((task = submissions.poll()) != null) {
+                    task.run();
+                }
+
+                // only ask to be woken up for writing while something is waiting for it
+                boolean drained = sendThread.drainAvailable();
+                if (drained == waitingToWrite) {
+                    waitingToWrite = !drained;
+                    int interestOps = waitingToWrite ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                    for (SelectionKey key : selector.keys()) {
+                        key.interestOps(interestOps);
+                    }
+                }
+
+                long timeout = Math.max(1, NANOSECONDS.toMillis(nextRun - System.nanoTime()));
+                selector.select(timeout);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isReadable()) {
+                        receive((DatagramChannel) key.channel());
+                    }
+                    // writable keys need nothing, the lanes get drained on the next iteration
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (ClosedSelectorException | ClosedChannelException e) {
+            // closed
+        } catch (IOException e) {
+            throw new Error(e);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    // handles what's ready, in batches so that the timers and the lanes aren't starved
+    private void receive(DatagramChannel channel) throws IOException {
+        for (int i = 0; i < Constants.PL_EVENT_LOOP_RECEIVE_BATCH_SIZE; i++) {
+            receiveBuffer.clear();
+            if (channel.receive(receiveBuffer) == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            handler.accept(receiveBuffer);
+        }
+    }
+
+    @Override
+    public void interrupt() {
+        super.interrupt();
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,90 @@
+package cs451.perfect_links;
+
+import cs451.Constants;
+import cs451.base.VarInt;
+
+import java.nio.ByteBuffer;
+
+// flyweight parser over the fragments of a received packet, exposes the header
+// fields of the current fragment and where its data lies inside the buffer,
+// nothing is allocated or copied unless asked for, reusable through reset()
+class FragmentCursor {
+    private ByteBuffer packet;
+    private int next;
+
+    // header of the current fragment (see MessageFragment for the format)
+    int messageId;
+    boolean isPart;
+    int messageLength;
+    int messageOffset; // where the data goes in the message
+    // the data is packet[dataOffset, dataOffset + dataLength)
+    int dataOffset;
+    int dataLength;
+
+    // the fragments start at fragmentsOffset (see PacketHeader)
+    void reset(ByteBuffer packet, int fragmentsOffset) {
+        this.packet = packet;
+        this.next = fragmentsOffset;
+        this.messageId = 0; // message ids are relative to the previous fragment
+    }
+
+    // moves to the next fragment, returns false if there are none left
+    boolean advance() {
+        if (next >= packet.limit()) {
+            return false;
+        }
+
+        int position = next;
+        byte flags = packet.get(position++);
+        if ((flags & ~MessageFragment.FLAG_PART) != 0) {
+            throw new IllegalStateException("invalid fragment flags: " + flags);
+        }
+        isPart = (flags & MessageFragment.FLAG_PART) != 0;
+
+        int messageIdDelta = VarInt.get(packet, position);
+        position += VarInt.size(messageIdDelta);
+        messageId += VarInt.unzigzag(messageIdDelta);
+
+        if (isPart) {
+            messageLength = VarInt.get(packet, position);
+            position += VarInt.size(messageLength);
+            messageOffset = VarInt.get(packet, position);
+            position += VarInt.size(messageOffset);
+        }
+
+        dataLength = VarInt.get(packet, position);
+        dataOffset = position + VarInt.size(dataLength);
+        if (dataLength < 0 || dataLength > packet.limit() - dataOffset) {
+            throw new IllegalStateException("fragment data out of bounds");
+        }
+        if (!isPart) {
+            messageLength = dataLength;
+            messageOffset = 0;
+        } else if (messageLength < 0 || messageLength > Constants.PL_MAX_MESSAGE_LENGTH) {
+            throw new IllegalStateException("invalid message length: " + messageLength);
+        } else if (messageOffset < 0 || (long) messageOffset + dataLength > messageLength) {
+            throw new IllegalStateException("fragment out of message bounds");
+        }
+
+        next = dataOffset + dataLength;
+        return true;
+    }
+
+    // copies the data of the current fragment out of the packet
+    byte[] copyData() {
+        byte[] data = new byte[dataLength];
+        packet.position(dataOffset);
+        packet.get(data);
+        return data;
+    }
+
+    // copies the data of the current fragment to its place in the message
+    void copyDataTo(byte[] message) {
+        copyDataTo(message, messageOffset);
+    }
+
+    void copyDataTo(byte[] array, int offset) {
+        packet.position(dataOffset);
+        packet.get(array, offset, dataLength);
+    }
+}
@@ -0,0 +1,63 @@
+package cs451.perfect_links;
+
+import cs451.base.BufferPool;
+import cs451.base.TimerWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// a sent packet waiting to be acknowledged, owns its pooled buffer until then,
+// ack packets (packetId 0) are only wrapped to wait in the SendThread lanes
+class InFlightPacket extends TimerWheel.Timer {
+    final int packetId;
+    final SendQueue owner;
+    final SentMessage[] messages; // with a fragment in the packet
+    private ByteBuffer buffer; // null once released
+
+    // the retransmission clock only starts once the packet is on the wire, not while it waits in
+    // a lane, both are set by the thread draining the lanes, right before the first transmission
+    volatile long firstSentAt; // ns
+    boolean sent = false; // only touched by the draining thread
+
+    // then only modified by the retransmission task
+    volatile int retransmissions = 0;
+    volatile long deadline; // ns
+    // guarded by the SendThread's sendingPackets, as is the timer
+    boolean acknowledged = false;
+
+    InFlightPacket(int packetId, ByteBuffer buffer, SentMessage[] messages, SendQueue owner) {
+        this.packetId = packetId;
+        this.buffer = buffer;
+        this.messages = messages;
+        this.owner = owner;
+    }
+
+    void stampFirstSend(long now) {
+        firstSentAt = now;
+        deadline = now + owner.rttEstimator.rto(0);
+    }
+
+    // (re)sends the packet unless it has already been released,
+    // synchronized so the buffer can't go back to the pool mid-send,
+    // returns false iff the channel is non-blocking and had no room for it
+    synchronized boolean send() {
+        if (buffer == null) {
+            return true;
+        }
+
+        buffer.position(0);
+        try {
+            return owner.channel.send(buffer, owner.destination) > 0;
+        } catch (IOException ignore) {
+            return true;
+        }
+    }
+
+    // the packet will never be sent again
+    synchronized void release(BufferPool bufferPool) {
+        if (buffer != null) {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -2,48 +2,40 @@ package cs451.perfect_links;
 
 import cs451.message.PLMessage;
 
-import java.util.HashMap;
-import java.util.stream.IntStream;
-
-// recombines a message from message fragments
+// recombines a message from message fragments, the whole message is allocated
+// up front from its length and every fragment is copied straight to its place,
+// each part arrives exactly once since duplicate packets are dropped beforehand
 public class MessageBuilder {
-    int expectedFragments = -1;
-    private final HashMap<Integer, MessageFragment> fragments = new HashMap<>();
+    private final byte[] bytes;
+    private int missing; // bytes not received yet
 
     private final int messageId;
     private final int sourceId;
 
-    MessageBuilder(int messageId, int sourceId) {
+    MessageBuilder(int messageId, int sourceId, int messageLength) {
         this.messageId = messageId;
         this.sourceId = sourceId;
+        this.bytes = new byte[messageLength];
+        this.missing = messageLength;
     }
 
-    public MessageBuilder add(MessageFragment fragment) {
-        fragments.put(fragment.fragmentIdx, fragment);
+    int length() {
+        return bytes.length;
+    }
 
-        if (fragment.isLast) {
-            expectedFragments = fragment.fragmentIdx + 1;
+    // the cursor must be on a part of this message
+    public MessageBuilder add(FragmentCursor fragment) {
+        if (fragment.messageLength != bytes.length) {
+            throw new IllegalStateException("inconsistent length for message " + messageId + " from " + sourceId);
         }
-
+        fragment.copyDataTo(bytes);
+        missing -= fragment.dataLength;
         return this;
     }
 
     // returns null if not enough fragments are present yet
     public PLMessage tryBuild() {
-        if (fragments.size() == expectedFragments) {
-            int length = IntStream
-                    .range(0, expectedFragments)
-                    .map(i -> fragments.get(i).data.length)
-                    .sum();
-
-            byte[] bytes = new byte[length];
-            int current = 0;
-            for (int i = 0; i < expectedFragments; i++) {
-                byte[] data = fragments.get(i).data;
-                System.arraycopy(data, 0, bytes, current, data.length);
-                current += data.length;
-            }
-
+        if (missing == 0) {
             return new PLMessage(messageId, sourceId, bytes);
         }
 
@@ -1,84 +1,98 @@
 package cs451.perfect_links;
 
-import cs451.base.BigEndianCoder;
+import cs451.base.VarInt;
 
-public class MessageFragment {
-    static final int METADATA_LENGTH = 13;
-
-    // metadata
-    public final int messageId; // 4 bytes
-    public final int fragmentIdx; // 4 bytes
-    public final boolean isLast; // 1 byte
-    // data length // 4 bytes
+import java.nio.ByteBuffer;
 
-    public final byte[] data; // does not contain metadata
-
-    MessageFragment(int messageId, int fragmentIdx, boolean isLast, byte[] data) {
+// a part of a message about to be sent, data is the whole message and the
+// fragment is data[offset, offset + length), the array is shared by all the
+// fragments of the message
+public class MessageFragment {
+    // fragment format (version 3), ints are variable length as in VarInt:
+    //   flags (1 byte) (FLAG_*)
+    //   message id (varint) (zigzag encoded difference with the message id of the previous
+    //     fragment in the packet, or with 0 for the first one)
+    //   message length (varint) (only with FLAG_PART)
+    //   offset in the message (varint) (only with FLAG_PART)
+    //   data length (varint)
+    //   data (data length bytes)
+    // so a message that fits in a single fragment costs 3 bytes of metadata
+    // when its id follows the previous one and it is shorter than 128 bytes,
+    // the receiver can put each part straight at its place in the message
+    public static final int MAX_METADATA_LENGTH = 1 + 4 * VarInt.MAX_SIZE;
+
+    // the fragment is only a part of the message
+    static final byte FLAG_PART = 1;
+
+    public final int messageId;
+    public final byte[] data;
+    public final int offset;
+    public final int length;
+
+    // the whole message on the sending side
+    final SentMessage message;
+
+    MessageFragment(int messageId, byte[] data, int offset, int length, SentMessage message) {
         this.messageId = messageId;
-        this.fragmentIdx = fragmentIdx;
-        this.isLast = isLast;
         this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.message = message;
     }
 
-    MessageFragment(int messageId, byte[] textBytes) {
-        this(messageId, 0, true, textBytes);
+    MessageFragment(int messageId, byte[] textBytes, SentMessage message) {
+        this(messageId, textBytes, 0, textBytes.length, message);
     }
 
-    // extracts the first message from a byte array
-    MessageFragment(byte[] packetBody, int startIndex) {
-        if (packetBody.length - startIndex < METADATA_LENGTH + 1) {
-            throw new IllegalStateException("packetBody too short");
-        }
-
-        messageId = BigEndianCoder.decodeInt(packetBody, startIndex);
-        fragmentIdx = BigEndianCoder.decodeInt(packetBody, startIndex + 4);
-        byte isLast = packetBody[startIndex + 8];
-        switch (isLast) {
-            case 0:
-                this.isLast = false;
-                break;
-            case 1:
-                this.isLast = true;
-                break;
-            default:
-                throw new IllegalStateException("invalid boolean byte: " + isLast);
-        }
+    boolean isPart() {
+        return length != data.length;
+    }
 
-        int dataLength = BigEndianCoder.decodeInt(packetBody, startIndex + 9);
-        data = new byte[dataLength];
-        System.arraycopy(packetBody, startIndex + METADATA_LENGTH, data, 0, dataLength);
+    boolean isLast() {
+        return offset + length == data.length;
     }
 
+    // encoded size as the first fragment of a packet, only an estimate anywhere else
     public int size() {
-        return METADATA_LENGTH + data.length;
+        return size(0);
+    }
+
+    // exact encoded size after a fragment of previousMessageId
+    int size(int previousMessageId) {
+        int metadataLength = 1 + VarInt.size(VarInt.zigzag(messageId - previousMessageId)) + VarInt.size(length);
+        if (isPart()) {
+            metadataLength += VarInt.size(data.length) + VarInt.size(offset);
+        }
+        return metadataLength + length;
     }
 
-    byte[] getBytes() {
-        byte[] bytes = new byte[METADATA_LENGTH + data.length];
-        BigEndianCoder.encodeInt(messageId, bytes, 0);
-        BigEndianCoder.encodeInt(fragmentIdx, bytes, 4);
-        bytes[8] = (byte) (isLast ? 1 : 0);
-        BigEndianCoder.encodeInt(data.length, bytes, 9);
-        System.arraycopy(data, 0, bytes, METADATA_LENGTH, data.length);
-        return bytes;
+    // serializes the fragment at the buffer's position, right after a fragment
+    // of previousMessageId, this is the only copy of the data
+    void writeTo(ByteBuffer buffer, int previousMessageId) {
+        boolean isPart = isPart();
+        buffer.put(isPart ? FLAG_PART : 0);
+        VarInt.put(buffer, VarInt.zigzag(messageId - previousMessageId));
+        if (isPart) {
+            VarInt.put(buffer, data.length);
+            VarInt.put(buffer, offset);
+        }
+        VarInt.put(buffer, length);
+        buffer.put(data, offset, length);
     }
 
-    MessageFragment[] split(int firstHalfSize) {
-        if (firstHalfSize <= METADATA_LENGTH) {
-            throw new IllegalArgumentException("size must be > " + METADATA_LENGTH);
+    // the first half gets the first firstHalfLength bytes of data
+    MessageFragment[] split(int firstHalfLength) {
+        if (firstHalfLength <= 0) {
+            throw new IllegalArgumentException("length must be > 0");
         }
 
-        if (firstHalfSize - METADATA_LENGTH >= data.length) {
+        if (firstHalfLength >= length) {
             return new MessageFragment[] {this, null};
         }
 
-        byte[] firstHalfBytes = new byte[firstHalfSize - METADATA_LENGTH];
-        System.arraycopy(data, 0, firstHalfBytes, 0, firstHalfBytes.length);
-        MessageFragment firstHalf = new MessageFragment(messageId, fragmentIdx, false, firstHalfBytes);
-
-        byte[] secondHalfBytes = new byte[data.length - firstHalfBytes.length];
-        System.arraycopy(data, firstHalfBytes.length, secondHalfBytes, 0, secondHalfBytes.length);
-        MessageFragment secondHalf = new MessageFragment(messageId, fragmentIdx + 1, true, secondHalfBytes);
+        // both halves are views of the same array, nothing is copied
+        MessageFragment firstHalf = new MessageFragment(messageId, data, offset, firstHalfLength, message);
+        MessageFragment secondHalf = new MessageFragment(messageId, data, offset + firstHalfLength, length - firstHalfLength, message);
 
         return new MessageFragment[] {firstHalf, secondHalf};
     }
@@ -0,0 +1,16 @@
+package cs451.perfect_links;
+
+import java.nio.ByteBuffer;
+
+// receives large messages piece by piece instead of whole, see PerfectLink.setSink(),
+// the chunks of a message come in order, each right after the previous one, then
+// onComplete is called once, messages from different sources may be streamed concurrently
+// unless PL_EVENT_LOOP is set, those of a single source never are
+public interface MessageSink {
+    // chunk is a read-only view of the next bytes of the message, at offset in it,
+    // it's only valid during the call, the bytes must be copied to be kept
+    void onChunk(int sourceId, int messageId, int messageLength, int offset, ByteBuffer chunk);
+
+    // every byte of the message has been passed to onChunk
+    void onComplete(int sourceId, int messageId);
+}
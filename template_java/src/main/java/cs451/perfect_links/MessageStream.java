@@ -0,0 +1,74 @@
+package cs451.perfect_links;
+
+import java.nio.ByteBuffer;
+import java.util.TreeMap;
+
+// streams a message to a MessageSink as its parts become contiguous, a part that continues
+// what has been streamed so far is passed on straight from the packet, the others are copied
+// and held until the gap before them is filled, so only those take memory
+class MessageStream {
+    private final int messageId;
+    private final int sourceId;
+    private final int messageLength;
+    private final MessageSink sink;
+
+    private int streamed = 0; // every byte before this offset has been passed to the sink
+    private final TreeMap<Integer, byte[]> ahead = new TreeMap<>(); // parts held back, by offset
+    private int aheadBytes = 0;
+
+    MessageStream(int messageId, int sourceId, int messageLength, MessageSink sink) {
+        this.messageId = messageId;
+        this.sourceId = sourceId;
+        this.messageLength = messageLength;
+        this.sink = sink;
+    }
+
+    // bytes the part would take if it were added now
+    int holdingCost(FragmentCursor fragment) {
+        return fragment.messageOffset == streamed ? 0 : fragment.dataLength;
+    }
+
+    int length() {
+        return messageLength;
+    }
+
+    int aheadBytes() {
+        return aheadBytes;
+    }
+
+    // the cursor must be on a part of this message, returns true once it has been fully streamed
+    boolean add(FragmentCursor fragment, ByteBuffer packet) {
+        if (fragment.messageLength != messageLength) {
+            throw new IllegalStateException("inconsistent length for message " + messageId + " from " + sourceId);
+        }
+        if (fragment.messageOffset != streamed) {
+            byte[] part = new byte[fragment.dataLength];
+            fragment.copyDataTo(part, 0);
+            ahead.put(fragment.messageOffset, part);
+            aheadBytes += part.length;
+            return false;
+        }
+
+        ByteBuffer chunk = packet.asReadOnlyBuffer();
+        chunk.limit(fragment.dataOffset + fragment.dataLength).position(fragment.dataOffset);
+        emit(chunk.slice());
+
+        byte[] part;
+        while ((part = ahead.remove(streamed)) != null) {
+            aheadBytes -= part.length;
+            emit(ByteBuffer.wrap(part).asReadOnlyBuffer());
+        }
+
+        if (streamed == messageLength) {
+            sink.onComplete(sourceId, messageId);
+            return true;
+        }
+        return false;
+    }
+
+    private void emit(ByteBuffer chunk) {
+        int length = chunk.remaining();
+        sink.onChunk(sourceId, messageId, messageLength, streamed, chunk);
+        streamed += length;
+    }
+}
@@ -1,40 +1,54 @@
 package cs451.perfect_links;
 
-import cs451.base.BigEndianCoder;
+import cs451.base.VarInt;
 
-import java.util.Iterator;
+import java.nio.ByteBuffer;
 
-public class Packet implements Iterable<MessageFragment> {
-    // normal packet format:
-    //   packet id (4 bytes) (> 0)
-    //   source id (4 bytes)
-    //   (message fragments)+ (each with its own metadata)
+// an outgoing packet, written directly into a pooled buffer
+public class Packet {
+    // packet format (version 3), ints are variable length as in VarInt:
+    //   version and flags (1 byte) (VERSION << 4 | FLAG_*)
+    //   source id (varint)
+    //   packet id (varint) (> 0, or 0 for acknowledgement packets)
+    //   cumulative ack (varint) (every packet id below it sent by the destination has been received)
+    //   sack length (varint) (in bytes)
+    //   sack bitmap (sack length bytes) (bit i is set iff packet cumulative + 1 + i has been received)
+    //   (message fragments)* (see MessageFragment) (at least one unless it's an acknowledgement packet)
+    // so normal packets carry the acknowledgements for the opposite direction
 
-    // acknowledgement format:
-    //   0 (4 bytes)
-    //   source id (4 bytes) (receiver of the original packets)
-    //   (acknowledged packet ids)+ (4 bytes each)
+    public static final int MAX_METADATA_SIZE = 1 + 4 * VarInt.MAX_SIZE; // without the sack bitmap
+    static final int VERSION = 3;
 
-    public static final int METADATA_SIZE = 8;
+    // the message fragments are deflated, see PacketCompressor
+    static final byte FLAG_COMPRESSED = 1;
 
     public final int packetId;
-    public final int sourceId;
-    public final byte[] bytes; // includes packetId
-    private final int length; // how much of bytes is valid
-
-    public Packet(byte[] bytes, int length) {
-        this.packetId = BigEndianCoder.decodeInt(bytes, 0);
-        this.sourceId = BigEndianCoder.decodeInt(bytes, 4);
-        this.bytes = bytes;
-        this.length = length;
+    public final ByteBuffer buffer; // pooled, the packet spans from 0 to the limit
+    final SentMessage[] messages; // with a fragment in the packet
+
+    Packet(int packetId, ByteBuffer buffer, SentMessage[] messages) {
+        this.packetId = packetId;
+        this.buffer = buffer;
+        this.messages = messages;
+    }
+
+    // writes everything up to the cumulative ack at the buffer's position
+    static void writeHeader(ByteBuffer buffer, int sourceId, int packetId) {
+        buffer.put((byte) (VERSION << 4));
+        VarInt.put(buffer, sourceId);
+        VarInt.put(buffer, packetId);
     }
 
-    public Packet(byte[] bytes) {
-        this(bytes, bytes.length);
+    static void setFlag(ByteBuffer packet, byte flag) {
+        packet.put(0, (byte) (packet.get(0) | flag));
     }
 
-    @Override
-    public Iterator<MessageFragment> iterator() {
-        return new PacketFragmentIterator(bytes, length);
+    // cheap peek at the source of a received packet, -1 if there is none
+    static int sourceIdOf(ByteBuffer packet) {
+        try {
+            return VarInt.get(packet, 1);
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            return -1;
+        }
     }
 }
@@ -0,0 +1,73 @@
+package cs451.perfect_links;
+
+import cs451.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// deflates the fragments of outgoing packets, only when it makes them smaller,
+// the FLAG_COMPRESSED header flag tells the receiver to inflate them back,
+// the headers and the sack stay uncompressed so acks can be read directly,
+// one compressor per SendQueue, not thread safe
+class PacketCompressor {
+    private final Deflater deflater = new Deflater(Constants.PL_COMPRESSION_LEVEL, true);
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(Constants.PL_DATAGRAM_SIZE);
+
+    // one inflater per receiving thread
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    // compresses packet[from, position) in place, returns false and leaves the
+    // packet untouched if the fragments are too small or don't shrink
+    boolean compress(ByteBuffer packet, int from) {
+        int length = packet.position() - from;
+        if (length < Constants.PL_MIN_COMPRESSION_SIZE) {
+            return false;
+        }
+
+        ByteBuffer input = packet.duplicate();
+        input.position(from).limit(from + length);
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+
+        // anything that doesn't end up strictly smaller is not worth it
+        scratch.clear().limit(length - 1);
+        while (!deflater.finished() && scratch.hasRemaining()) {
+            deflater.deflate(scratch);
+        }
+        if (!deflater.finished()) {
+            return false;
+        }
+
+        scratch.flip();
+        packet.position(from);
+        packet.put(scratch);
+        return true;
+    }
+
+    // writes the packet with its fragments inflated into out, which is flipped,
+    // everything in the header stays at the same place
+    static void decompress(ByteBuffer packet, PacketHeader header, ByteBuffer out) {
+        int fragmentsOffset = header.fragmentsOffset;
+
+        out.clear();
+        out.put(packet.duplicate().position(0).limit(fragmentsOffset));
+        out.put(0, (byte) (packet.get(0) & ~Packet.FLAG_COMPRESSED));
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(packet.duplicate().position(fragmentsOffset));
+        try {
+            while (!inflater.finished()) {
+                if (!out.hasRemaining() || inflater.inflate(out) == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("invalid compressed packet");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("invalid compressed packet", e);
+        }
+        out.flip();
+    }
+}
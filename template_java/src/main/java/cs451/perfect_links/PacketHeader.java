@@ -0,0 +1,49 @@
+package cs451.perfect_links;
+
+import cs451.base.VarInt;
+
+import java.nio.ByteBuffer;
+
+// header of a received packet (see Packet for the format), parsed in place
+// without copying anything, reusable through parse()
+class PacketHeader {
+    int flags;
+    int sourceId;
+    int packetId;
+    int cumulative;
+    // the sack bitmap is packet[sackOffset, sackOffset + sackLength)
+    int sackOffset;
+    int sackLength;
+    int fragmentsOffset;
+
+    // returns false if the packet is truncated or in another format version
+    boolean parse(ByteBuffer packet) {
+        try {
+            int versionAndFlags = packet.get(0) & 0xFF;
+            if (versionAndFlags >>> 4 != Packet.VERSION) {
+                return false;
+            }
+            flags = versionAndFlags & 0x0F;
+
+            int position = 1;
+            sourceId = VarInt.get(packet, position);
+            position += VarInt.size(sourceId);
+            packetId = VarInt.get(packet, position);
+            position += VarInt.size(packetId);
+            cumulative = VarInt.get(packet, position);
+            position += VarInt.size(cumulative);
+            sackLength = VarInt.get(packet, position);
+            position += VarInt.size(sackLength);
+            sackOffset = position;
+            fragmentsOffset = sackOffset + sackLength;
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            return false;
+        }
+
+        return sackLength >= 0 && fragmentsOffset <= packet.limit();
+    }
+
+    boolean isCompressed() {
+        return (flags & Packet.FLAG_COMPRESSED) != 0;
+    }
+}
@@ -1,22 +1,24 @@
 package cs451.perfect_links;
 
-import cs451.base.BigEndianCoder;
+import cs451.Constants;
+import cs451.base.BufferPool;
 import cs451.base.FullAddress;
-import cs451.base.Pair;
 import cs451.message.PLMessage;
 
-import java.net.DatagramSocket;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 public class PerfectLink {
     private final int processId;
     private final Map<Integer, FullAddress> addresses;
+    private final List<DatagramChannel> channels;
 
     // *** sending ***
     private final Map<Integer, SendQueue> sendQueues = new ConcurrentHashMap<>();
@@ -24,44 +26,108 @@ public class PerfectLink {
     private final AtomicInteger nextMessageId = new AtomicInteger(1);
 
     // *** receiving ***
-    private final ReceiveThread receiveThread;
+    // one reader per channel, packets are processed by the workers,
+    // unless everything runs on the event loop
+    private final EventLoop eventLoop;
+    private final List<ReceiveThread> receiveThreads = new ArrayList<>();
+    private final ReceiveWorker[] receiveWorkers = new ReceiveWorker[Constants.PL_NUM_RECEIVER_THREADS];
     private final Reconstructor reconstructor;
-    // contains (packetId, sourceId)
-    private final HashSet<Pair<Integer, Integer>> receivedIds = new HashSet<>(); // TODO: garbage collect
-
-    private final ExecutorService executor = Executors.newFixedThreadPool(3);
-
-    public PerfectLink(int processId, Map<Integer, FullAddress> addresses, DatagramSocket socket, Consumer<PLMessage> deliverCallback) {
+    // one per receiving thread
+    private final ThreadLocal<PacketHeader> headers = ThreadLocal.withInitial(PacketHeader::new);
+
+    // direct buffers, received packets can be as large as MAX_PACKET_SIZE,
+    // packets are only made up to PL_DATAGRAM_SIZE and held until acknowledged
+    private final BufferPool receiveBufferPool = new BufferPool(Constants.MAX_PACKET_SIZE, Constants.PL_BUFFER_POOL_SIZE);
+    private final BufferPool sendBufferPool = new BufferPool(
+            Constants.PL_DATAGRAM_SIZE,
+            Constants.PL_SEND_BUFFER_POOL_BYTES / Constants.PL_DATAGRAM_SIZE
+    );
+
+    // deliverCallback is called concurrently for messages from different sources, unless
+    // PL_EVENT_LOOP is set, then it's always called on the event loop thread,
+    // destinations are spread across the channels, which may share the same port
+    public PerfectLink(int processId, Map<Integer, FullAddress> addresses, List<DatagramChannel> channels, Consumer<PLMessage> deliverCallback) {
         this.processId = processId;
         this.addresses = addresses;
+        this.channels = channels;
         this.reconstructor = new Reconstructor(deliverCallback);
 
-        sendThread = new SendThread(socket, () -> {
+        int interval = Constants.PL_BATCHING_POLICY.flushInterval();
+        sendThread = new SendThread(sendBufferPool, interval, () -> {
+            long now = System.nanoTime();
             for (SendQueue queue : sendQueues.values()) {
-                queue.flush();
+                queue.flushExpired(now);
             }
         });
 
-        receiveThread = new ReceiveThread(
-                socket,
-                normalPacket -> {
-                    byte[] packetData = normalPacket.getData();
-                    int packetId = BigEndianCoder.decodeInt(packetData, 0);
-                    int sourceId = BigEndianCoder.decodeInt(packetData, 4);
-
-                    Pair<Integer, Integer> key = new Pair<>(packetId, sourceId);
-                    if (receivedIds.add(key)) {
-                        reconstructor.add(packetData, normalPacket.getLength());
-                    }
+        if (Constants.PL_EVENT_LOOP) {
+            try {
+                eventLoop = new EventLoop(channels, sendThread, interval, receiveBufferPool.acquire(), this::handlePacket);
+            } catch (IOException e) {
+                throw new Error(e);
+            }
+            eventLoop.start();
+            return;
+        }
+        eventLoop = null;
 
-                    // send acknowledgement
-                    getSendQueueFor(sourceId).sendAck(packetId);
-                },
-                sendThread::acknowledge
-        );
+        for (int i = 0; i < receiveWorkers.length; i++) {
+            receiveWorkers[i] = new ReceiveWorker(receiveBufferPool, this::handlePacket);
+        }
+        for (DatagramChannel channel : channels) {
+            receiveThreads.add(new ReceiveThread(channel, receiveBufferPool, receiveWorkers));
+        }
 
         sendThread.start();
-        receiveThread.start();
+        for (ReceiveWorker worker : receiveWorkers) {
+            worker.start();
+        }
+        for (ReceiveThread receiveThread : receiveThreads) {
+            receiveThread.start();
+        }
+    }
+
+    private void handlePacket(ByteBuffer packet) {
+        // malformed packets are dropped here, before anything is marked as received,
+        // what happens once a packet has been marked must not fail
+        PacketHeader header = headers.get();
+        if (!header.parse(packet) || !addresses.containsKey(header.sourceId)) {
+            return;
+        }
+        SendQueue sendQueue = getSendQueueFor(header.sourceId);
+
+        // normal packets carry acknowledgements as well
+        sendQueue.handleAck(packet, header);
+        if (header.packetId == 0) {
+            return;
+        }
+
+        ByteBuffer decompressed = null;
+        try {
+            if (header.isCompressed()) {
+                decompressed = receiveBufferPool.acquire();
+                try {
+                    PacketCompressor.decompress(packet, header, decompressed);
+                } catch (IllegalStateException e) {
+                    return;
+                }
+                packet = decompressed;
+            }
+
+            // a packet that is malformed or doesn't fit in the reassembly budget is dropped without being
+            // acknowledged, the next expected one always fits so that the partial messages can complete
+            boolean admitted = reconstructor.admits(packet, header, sendQueue.isNextExpected(header.packetId));
+            if (admitted && sendQueue.markReceived(header.packetId)) {
+                reconstructor.add(packet, header);
+            }
+        } finally {
+            if (decompressed != null) {
+                receiveBufferPool.release(decompressed);
+            }
+        }
+
+        // send acknowledgement
+        sendQueue.sendAck();
     }
 
     private SendQueue getSendQueueFor(Integer pid) {
@@ -69,26 +135,111 @@ public class PerfectLink {
         if (destination == null) {
             throw new IllegalStateException("no destination for pid " + pid);
         }
-        return sendQueues.computeIfAbsent(pid, ignored -> new SendQueue(destination, processId, sendThread));
+        DatagramChannel channel = channels.get(Math.floorMod(pid, channels.size()));
+        return sendQueues.computeIfAbsent(pid, ignored -> new SendQueue(pid, destination, channel, processId, sendThread, sendBufferPool, Constants.PL_BATCHING_POLICY));
     }
 
-    public void send(String msg, Integer processId) {
-        send(msg.getBytes(), processId);
+    // messages can't be longer than PL_MAX_MESSAGE_LENGTH,
+    // every send returns a future completed once the destination has acknowledged the whole message,
+    // on a receiving thread, so dependent actions must not block, the bytes of unacknowledged messages
+    // to a destination are bounded by PL_MAX_UNACKNOWLEDGED_BYTES
+
+    public CompletableFuture<Void> send(String msg, Integer processId) {
+        return send(msg.getBytes(), processId);
     }
 
-    public void send(byte[] msgBytes, Integer processId) {
-        executor.submit(() -> {
-            int messageId = nextMessageId.getAndIncrement();
-            getSendQueueFor(processId).send(messageId, msgBytes);
-        });
+    // waits while the destination is at its bound, fails with an InterruptedException if interrupted
+    public CompletableFuture<Void> send(byte[] msgBytes, Integer processId) {
+        checkLength(msgBytes);
+        SendQueue sendQueue = getSendQueueFor(processId);
+        try {
+            sendQueue.reserve(msgBytes.length, true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        return enqueue(sendQueue, msgBytes);
+    }
+
+    // fails right away with a RejectedExecutionException if the destination is at its bound
+    public CompletableFuture<Void> trySend(byte[] msgBytes, Integer processId) {
+        checkLength(msgBytes);
+        SendQueue sendQueue = getSendQueueFor(processId);
+        try {
+            if (!sendQueue.reserve(msgBytes.length, false)) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("too many unacknowledged bytes to " + processId));
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("unreachable", e);
+        }
+        return enqueue(sendQueue, msgBytes);
+    }
+
+    // neither waits nor fails, the message still counts towards the bound, only for callers that
+    // bound their own traffic and can't wait, e.g. because they send while holding a lock that
+    // the receiving threads need to process the acknowledgements
+    public CompletableFuture<Void> sendUnbounded(byte[] msgBytes, Integer processId) {
+        checkLength(msgBytes);
+        SendQueue sendQueue = getSendQueueFor(processId);
+        sendQueue.forceReserve(msgBytes.length);
+        return enqueue(sendQueue, msgBytes);
+    }
+
+    // receivers drop anything longer
+    private static void checkLength(byte[] msgBytes) {
+        if (msgBytes.length > Constants.PL_MAX_MESSAGE_LENGTH) {
+            throw new IllegalArgumentException("message too long: " + msgBytes.length + " bytes");
+        }
+    }
+
+    // the event loop owns the send queues, anyone else hands the message over
+    private CompletableFuture<Void> enqueue(SendQueue sendQueue, byte[] msgBytes) {
+        int messageId = nextMessageId.getAndIncrement();
+        SentMessage message = new SentMessage(msgBytes.length);
+        if (eventLoop != null && !eventLoop.isLoopThread()) {
+            eventLoop.submit(() -> sendQueue.send(messageId, msgBytes, message));
+        } else {
+            sendQueue.send(messageId, msgBytes, message);
+        }
+        return message.acknowledged;
+    }
+
+    // messages of at least PL_STREAMING_MIN_LENGTH bytes are then streamed to the sink as their
+    // fragments become contiguous, instead of being passed whole to deliverCallback, so they're
+    // never held entirely in memory, best set before anything is received
+    public void setSink(MessageSink sink) {
+        reconstructor.setSink(sink);
     }
 
     public void close() {
+        // the workers, receive threads and SendThread threads are never started with the event loop
+        if (eventLoop != null) {
+            eventLoop.interrupt();
+            for (DatagramChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException ignore) {
+                }
+            }
+            try {
+                eventLoop.join();
+            } catch (InterruptedException ignore) {
+            }
+            return;
+        }
+
         sendThread.interrupt();
-        receiveThread.interrupt();
+        for (ReceiveThread receiveThread : receiveThreads) {
+            receiveThread.interrupt();
+        }
+        for (ReceiveWorker worker : receiveWorkers) {
+            worker.interrupt();
+        }
 
         try {
-            receiveThread.join();
+            for (ReceiveThread receiveThread : receiveThreads) {
+                receiveThread.join();
+            }
         } catch (InterruptedException ignore) {
         }
     }
@@ -1,63 +1,52 @@
 package cs451.perfect_links;
 
-import cs451.base.BigEndianCoder;
-import cs451.Constants;
-import cs451.base.Pair;
+import cs451.base.BufferPool;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketTimeoutException;
-import java.util.Arrays;
-import java.util.function.Consumer;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+
+// reads packets from a single channel and hands them to the workers, sharded by
+// source id so that all the per-source state (deduplication, reassembly,
+// acknowledgements) is only ever touched by a single worker, in arrival order,
+// even when several channels share the same port
 public class ReceiveThread extends Thread {
-    private final DatagramSocket socket;
-    private final byte[] buffer = new byte[Constants.MAX_PACKET_SIZE];
-
-    private final Consumer<DatagramPacket> normalPacketCallback;
-    private final Consumer<Integer> acknowledgementCallback;
-
-    // slow and broken
-//    private final ExecutorService executor = Executors.newFixedThreadPool(Constants.PL_NUM_RECEIVER_THREADS);
-
-    ReceiveThread(DatagramSocket socket, Consumer<DatagramPacket> normalPacketCallback, Consumer<Integer> acknowledgementCallback) {
-        this.socket = socket;
-        this.normalPacketCallback = normalPacketCallback;
-        this.acknowledgementCallback = acknowledgementCallback;
+    private final DatagramChannel channel;
+    private final BufferPool bufferPool;
+    private final ReceiveWorker[] workers;
+
+    ReceiveThread(DatagramChannel channel, BufferPool bufferPool, ReceiveWorker[] workers) {
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.workers = workers;
     }
 
-    private void handlePacket(DatagramPacket packet) {
-        int packetId = BigEndianCoder.decodeInt(buffer, 0);
-        if (packetId == 0) {
-            int numAcks = BigEndianCoder.decodeInt(buffer, 8);
-            for (int i = 0; i < numAcks; i++) {
-                int acknowledgedPacketId = BigEndianCoder.decodeInt(buffer, i * 4 + 12);
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                ByteBuffer buffer = bufferPool.acquire();
                 try {
-                    acknowledgementCallback.accept(acknowledgedPacketId);
-                } catch (IllegalStateException e) {
-                    System.out.println("Full packet:");
-                    System.out.println(Arrays.toString(buffer));
+                    channel.receive(buffer);
+                    buffer.flip();
+                } catch (IOException e) {
+                    bufferPool.release(buffer);
                     throw e;
                 }
-            }
-        } else {
-            normalPacketCallback.accept(packet);
-        }
-    }
 
-    @Override
-    public void run() {
-        while (!isInterrupted()) {
-            try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-//                executor.submit(() -> handlePacket(packet));
-                handlePacket(packet);
-            } catch (SocketTimeoutException ignored) {
-            } catch (IOException e) {
-                throw new Error(e);
+                // both normal and ack packets start with the source id
+                int sourceId = Packet.sourceIdOf(buffer);
+                if (sourceId < 0) {
+                    bufferPool.release(buffer);
+                    continue;
+                }
+                workers[Math.floorMod(sourceId, workers.length)].submit(buffer);
             }
+        } catch (AsynchronousCloseException | InterruptedException e) {
+            // closed or interrupted
+        } catch (IOException e) {
+            throw new Error(e);
         }
     }
 }
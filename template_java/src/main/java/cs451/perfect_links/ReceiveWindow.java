@@ -0,0 +1,54 @@
+package cs451.perfect_links;
+
+import cs451.Constants;
+import cs451.base.SequenceSet;
+import cs451.base.VarInt;
+
+import java.nio.ByteBuffer;
+
+// keeps track of which packets have been received from a single process
+// and encodes that knowledge as a cumulative + selective acknowledgement,
+// only a bounded window of packet ids above the cumulative acknowledgement
+// is remembered so memory stays constant no matter how many packets flow
+public class ReceiveWindow {
+    // the cumulative acknowledgement is its watermark
+    private final SequenceSet received = new SequenceSet(
+            Math.min(1024, Constants.PL_RECEIVE_WINDOW_SIZE),
+            Constants.PL_RECEIVE_WINDOW_SIZE
+    );
+
+    // returns true iff the packet is new and has been recorded,
+    // packets that were already received or that lie beyond the window are
+    // rejected, the latter will be retransmitted once the window has moved on
+    public synchronized boolean add(int packetId) {
+        return received.add(packetId);
+    }
+
+    // true iff every packet before this one has been received
+    public synchronized boolean isNextExpected(int packetId) {
+        return packetId == received.watermark();
+    }
+
+    // writes the cumulative ack, sack length and sack bitmap of a packet header
+    // (see Packet for the format) at the buffer's position, with at most maxSackLength
+    // bytes of sack, returns true iff the whole sack fit
+    public synchronized boolean writeAck(ByteBuffer buffer, int maxSackLength) {
+        int cumulative = received.watermark();
+        int sackBits = Math.max(0, received.highest() - cumulative);
+        int fullSackLength = (sackBits + 7) / 8;
+        int sackLength = Math.min(fullSackLength, maxSackLength);
+
+        VarInt.put(buffer, cumulative);
+        VarInt.put(buffer, sackLength);
+        for (int i = 0; i < sackLength; i++) {
+            int sackByte = 0;
+            for (int bit = 0; bit < 8 && i * 8 + bit < sackBits; bit++) {
+                if (received.contains(cumulative + 1 + i * 8 + bit)) {
+                    sackByte |= 1 << bit;
+                }
+            }
+            buffer.put((byte) sackByte);
+        }
+        return sackLength == fullSackLength;
+    }
+}
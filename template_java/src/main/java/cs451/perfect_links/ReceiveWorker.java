@@ -0,0 +1,46 @@
+package cs451.perfect_links;
+
+import cs451.Constants;
+import cs451.base.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+// handles the packets of a subset of the sources, in the order they were received,
+// and gives their buffers back to the pool afterwards, fed by the ReceiveThreads
+class ReceiveWorker extends Thread {
+    private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(Constants.PL_RECEIVE_QUEUE_SIZE);
+    private final BufferPool bufferPool;
+    private final Consumer<ByteBuffer> handler;
+
+    ReceiveWorker(BufferPool bufferPool, Consumer<ByteBuffer> handler) {
+        this.bufferPool = bufferPool;
+        this.handler = handler;
+        setDaemon(true);
+    }
+
+    // blocks while the worker is behind, which leaves the excess in the socket buffer
+    void submit(ByteBuffer packet) throws InterruptedException {
+        queue.put(packet);
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            ByteBuffer packet;
+            try {
+                packet = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                handler.accept(packet);
+            } finally {
+                bufferPool.release(packet);
+            }
+        }
+    }
+}
@@ -1,40 +1,142 @@
 package cs451.perfect_links;
 
-import cs451.base.Pair;
+import cs451.Constants;
 import cs451.message.PLMessage;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
- * Reconstructs messages from fragments as they arrive, fragments can arrive in any order, any
- * number of times, when a message is ready, it's passed to `deliverCallback`
+ * Reconstructs messages from fragments as they arrive, fragments can arrive in any order, each
+ * exactly once, when a message is ready, it's passed to `deliverCallback`
+ *
+ * Partially received messages are preallocated whole, the memory they take is bounded by
+ * {@link Constants#PL_REASSEMBLY_BUDGET_BYTES} through {@link #admits}, packets that would exceed it
+ * are left unacknowledged so they get retransmitted later instead
+ *
+ * Once a {@link MessageSink} is set, messages of at least {@link Constants#PL_STREAMING_MIN_LENGTH}
+ * bytes are streamed to it through a {@link MessageStream} instead, only their parts that arrive
+ * ahead of a gap count against the budget
  */
 public class Reconstructor {
     private final Consumer<PLMessage> deliver;
-    // indexed by (messageId, sourceId)
-    private final Map<Pair<Integer, Integer>, MessageBuilder> builders = new ConcurrentHashMap<>();
-    // contains (messageId, sourceId)
+    // only for messages made of several fragments, indexed by (sourceId << 32 | messageId),
+    // all the packets of a source are handled by the same thread
+    private final Map<Long, MessageBuilder> builders = new ConcurrentHashMap<>();
+    // same for streamed messages
+    private final Map<Long, MessageStream> streams = new ConcurrentHashMap<>();
+    private volatile MessageSink sink;
+    // bytes allocated by the builders
+    private final AtomicLong reservedBytes = new AtomicLong();
+    // one cursor per receiving thread
+    private final ThreadLocal<FragmentCursor> cursors = ThreadLocal.withInitial(FragmentCursor::new);
 
     public Reconstructor(Consumer<PLMessage> deliver) {
         this.deliver = deliver;
     }
 
-    public void add(byte[] packetData, int packetLength) {
-        Packet packet = new Packet(packetData, packetLength);
+    void setSink(MessageSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Tells whether the packet is well formed and the messages it starts fit in the reassembly
+     * budget, packets that don't start any new message fit, so does the next expected packet of its
+     * source, since the partial messages may be waiting on it, which makes the budget a soft bound
+     * exceeded by at most that packet's new messages, each of at most
+     * {@link Constants#PL_MAX_MESSAGE_LENGTH} bytes
+     */
+    boolean admits(ByteBuffer packet, PacketHeader header, boolean isNextExpected) {
+        FragmentCursor cursor = cursors.get();
+        cursor.reset(packet, header.fragmentsOffset);
+
+        long needed = 0;
+        try {
+            while (cursor.advance()) {
+                if (!cursor.isPart) {
+                    continue;
+                }
+                long key = key(header.sourceId, cursor.messageId);
+                MessageStream stream = streams.get(key);
+                MessageBuilder builder = builders.get(key);
+                if (stream != null) {
+                    if (cursor.messageLength != stream.length()) {
+                        return false;
+                    }
+                    needed += stream.holdingCost(cursor);
+                } else if (builder != null) {
+                    if (cursor.messageLength != builder.length()) {
+                        return false;
+                    }
+                } else if (isStreamed(cursor)) {
+                    needed += cursor.messageOffset == 0 ? 0 : cursor.dataLength;
+                } else {
+                    needed += cursor.messageLength;
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            return false;
+        }
+        return isNextExpected || needed == 0 || reservedBytes.get() + needed <= Constants.PL_REASSEMBLY_BUDGET_BYTES;
+    }
 
-        for (MessageFragment fragment : packet) {
-            Pair<Integer, Integer> key = new Pair<>(fragment.messageId, packet.sourceId);
-            PLMessage message = builders
-                    .computeIfAbsent(key, ignored -> new MessageBuilder(fragment.messageId, packet.sourceId))
-                    .add(fragment)
-                    .tryBuild();
+    // the buffer contains exactly one packet, single fragment messages are copied
+    // out of it once and delivered directly, the others go through a MessageBuilder
+    void add(ByteBuffer packet, PacketHeader header) {
+        int sourceId = header.sourceId;
+        FragmentCursor cursor = cursors.get();
+        cursor.reset(packet, header.fragmentsOffset);
+
+        while (cursor.advance()) {
+            if (!cursor.isPart) {
+                deliver.accept(new PLMessage(cursor.messageId, sourceId, cursor.copyData()));
+                continue;
+            }
+
+            long key = key(sourceId, cursor.messageId);
+            MessageBuilder builder = builders.get(key);
+            if (builder == null && (streams.containsKey(key) || isStreamed(cursor))) {
+                stream(packet, cursor, key, sourceId);
+                continue;
+            }
+            if (builder == null) {
+                builder = new MessageBuilder(cursor.messageId, sourceId, cursor.messageLength);
+                reservedBytes.addAndGet(cursor.messageLength);
+                builders.put(key, builder);
+            }
 
+            PLMessage message = builder.add(cursor).tryBuild();
             if (message != null) {
-                deliver.accept(message);
                 builders.remove(key);
+                reservedBytes.addAndGet(-builder.length());
+                deliver.accept(message);
             }
         }
     }
+
+    private void stream(ByteBuffer packet, FragmentCursor cursor, long key, int sourceId) {
+        MessageStream stream = streams.get(key);
+        if (stream == null) {
+            stream = new MessageStream(cursor.messageId, sourceId, cursor.messageLength, sink);
+            streams.put(key, stream);
+        }
+
+        int aheadBytes = stream.aheadBytes();
+        boolean complete = stream.add(cursor, packet);
+        reservedBytes.addAndGet(stream.aheadBytes() - aheadBytes);
+        if (complete) {
+            streams.remove(key);
+        }
+    }
+
+    private boolean isStreamed(FragmentCursor cursor) {
+        return sink != null && cursor.messageLength >= Constants.PL_STREAMING_MIN_LENGTH;
+    }
+
+    private static long key(int sourceId, int messageId) {
+        return (long) sourceId << 32 | (messageId & 0xFFFF_FFFFL);
+    }
 }
@@ -0,0 +1,34 @@
+package cs451.perfect_links;
+
+import cs451.Constants;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// smoothed round trip time estimation for a single destination (as in RFC 6298),
+// provides the retransmission timeout for packets sent to that destination
+public class RttEstimator {
+    private static final long MIN_RTO = MILLISECONDS.toNanos(Constants.PL_MIN_RTO);
+    private static final long MAX_RTO = MILLISECONDS.toNanos(Constants.PL_MAX_RTO);
+
+    // all in nanoseconds
+    private long smoothedRtt = -1; // -1 until the first sample
+    private long rttVariance = 0;
+    private long rto = MILLISECONDS.toNanos(Constants.PL_INITIAL_RTO);
+
+    // should only be fed samples from packets that were never retransmitted (Karn's algorithm)
+    public synchronized void sample(long rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+        rto = Math.min(MAX_RTO, Math.max(MIN_RTO, smoothedRtt + 4 * rttVariance));
+    }
+
+    // timeout for a packet that has already been retransmitted the given number of times
+    public synchronized long rto(int retransmissions) {
+        return Math.min(MAX_RTO, rto << Math.min(retransmissions, 16));
+    }
+}
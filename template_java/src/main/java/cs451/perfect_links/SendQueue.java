@@ -1,65 +1,201 @@
 package cs451.perfect_links;
 
-import cs451.base.BigEndianCoder;
 import cs451.Constants;
+import cs451.base.BufferPool;
 import cs451.base.FullAddress;
 
-import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
-import java.util.Queue;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.LinkedBlockingQueue;
 
 public class SendQueue {
-    private final FullAddress destination;
+    final int destinationId;
+    final InetSocketAddress destination;
+    final DatagramChannel channel; // used for everything sent to the destination
+    final RttEstimator rttEstimator = new RttEstimator();
     private final int sourceId;
     private final SendThread sendThread;
+    private final BufferPool bufferPool;
+    private final BatchingPolicy policy;
+
+    private static final SentMessage[] NO_MESSAGES = new SentMessage[0];
 
     private final Deque<MessageFragment> queue = new LinkedBlockingDeque<>();
     private int totalQueueSize = 0;
+    private final List<SentMessage> packing = new ArrayList<>(); // scratch space for forceMakePacket
+
+    // bytes of the messages handed to send() that haven't been acknowledged yet
+    private long unacknowledgedBytes = 0;
+    // their futures are completed outside the lock
+    private final List<SentMessage> newlyAcknowledged = new ArrayList<>();
+    private long oldestQueuedAt; // nanoTime, only meaningful while the queue is not empty
 
-    private final Queue<Integer> ackQueue = new LinkedBlockingQueue<>();
+    // packets received from the destination, acknowledged back to it
+    private final ReceiveWindow receiveWindow = new ReceiveWindow();
+    private int pendingAcks = 0; // packets received since the last ack packet
+    private long oldestPendingAckAt; // nanoTime, only meaningful while pendingAcks > 0
 
     private int nextPacketId = 1; // 0 is used to identify ack packets
+    private int lowestUnacknowledged = 1;
+    private int acknowledgedCount = 0; // packets known to be received by the destination
+    private int[] sackedIds = new int[64]; // scratch space for handleAck
+
+    // new packets are only made while there is room in the window
+    private final CongestionWindow congestionWindow = new CongestionWindow();
+
+    private final PacketCompressor compressor = Constants.PL_COMPRESSION ? new PacketCompressor() : null;
 
-    public SendQueue(FullAddress destination, int sourceId, SendThread sendThread) {
-        this.destination = destination;
+    public SendQueue(int destinationId, FullAddress destination, DatagramChannel channel, int sourceId, SendThread sendThread, BufferPool bufferPool, BatchingPolicy policy) {
+        this.destinationId = destinationId;
+        this.destination = new InetSocketAddress(destination.address, destination.port);
+        this.channel = channel;
         this.sourceId = sourceId;
         this.sendThread = sendThread;
+        this.bufferPool = bufferPool;
+        this.policy = policy;
     }
 
     private synchronized void sendMessageFragment(MessageFragment fragment) {
+        if (queue.isEmpty()) {
+            oldestQueuedAt = System.nanoTime();
+        }
         queue.offer(fragment);
         totalQueueSize += fragment.size();
 
 //        testQueue();
 
-        Packet maybePacket = tryMakePacket();
-        if (maybePacket != null) {
-            sendThread.sendPacket(maybePacket, destination);
+        // a large message fills many packets at once
+        Packet maybePacket;
+        while ((maybePacket = tryMakePacket()) != null) {
+            sendThread.sendPacket(maybePacket, this);
         }
     }
 
-    public void send(int messageId, byte[] textBytes) {
-        sendMessageFragment(new MessageFragment(messageId, textBytes));
+    // makes room for a message among the unacknowledged bytes, if there is none, either waits
+    // for acknowledgements or returns false right away, a message is always let through when
+    // nothing is outstanding, no matter how large it is
+    public synchronized boolean reserve(int length, boolean block) throws InterruptedException {
+        while (unacknowledgedBytes > 0 && unacknowledgedBytes + length > Constants.PL_MAX_UNACKNOWLEDGED_BYTES) {
+            if (!block) {
+                return false;
+            }
+            wait();
+        }
+        unacknowledgedBytes += length;
+        return true;
+    }
+
+    // for callers that bound their own traffic and can't wait
+    public synchronized void forceReserve(int length) {
+        unacknowledgedBytes += length;
+    }
+
+    // room must have been reserved for the message
+    void send(int messageId, byte[] textBytes, SentMessage message) {
+        sendMessageFragment(new MessageFragment(messageId, textBytes, message));
+    }
+
+    // returns true iff the packet is new and should be processed
+    public boolean markReceived(int packetId) {
+        return receiveWindow.add(packetId);
     }
 
-    public void sendAck(int packetId) {
-        ackQueue.offer(packetId);
+    // the packet the cumulative acknowledgement is waiting for
+    public boolean isNextExpected(int packetId) {
+        return receiveWindow.isNextExpected(packetId);
+    }
+
+    public void sendAck() {
         Packet maybePacket = tryMakeAckPacket();
         if (maybePacket != null) {
-            sendThread.sendPacket(maybePacket, destination);
+            sendThread.sendPacket(maybePacket, this);
+        }
+    }
+
+    // releases every packet confirmed by the acknowledgements of a packet from the destination,
+    // every packet has them, normal ones as well as acknowledgement packets, and completes
+    // the futures of the messages that are now fully acknowledged
+    public void handleAck(ByteBuffer packet, PacketHeader header) {
+        SentMessage[] acknowledged = NO_MESSAGES;
+        synchronized (this) {
+            processAck(packet, header);
+            if (!newlyAcknowledged.isEmpty()) {
+                acknowledged = newlyAcknowledged.toArray(NO_MESSAGES);
+                newlyAcknowledged.clear();
+                notifyAll();
+            }
+        }
+
+        // dependent actions run right here, outside the lock
+        for (SentMessage message : acknowledged) {
+            message.acknowledged.complete(null);
         }
     }
 
-    public void flush() {
+    private synchronized void processAck(ByteBuffer packet, PacketHeader header) {
+        int cumulative = header.cumulative;
+        int sackLength = header.sackLength;
+
+        sendThread.acknowledgeRange(this, lowestUnacknowledged, cumulative);
+        lowestUnacknowledged = Math.max(lowestUnacknowledged, cumulative);
+
+        int acknowledged = cumulative - 1;
+        int numSacked = 0;
+        for (int i = 0; i < sackLength; i++) {
+            int sackByte = packet.get(header.sackOffset + i) & 0xFF;
+            acknowledged += Integer.bitCount(sackByte);
+            if (numSacked + 8 > sackedIds.length) {
+                sackedIds = Arrays.copyOf(sackedIds, sackedIds.length * 2);
+            }
+            while (sackByte != 0) {
+                int bit = Integer.numberOfTrailingZeros(sackByte);
+                sackedIds[numSacked++] = cumulative + 1 + i * 8 + bit;
+                sackByte &= sackByte - 1;
+            }
+        }
+        sendThread.acknowledgeAll(this, sackedIds, numSacked);
+
+        // acks can arrive out of order, an older one knows less
+        int newlyAcknowledged = acknowledged - acknowledgedCount;
+        acknowledgedCount = Math.max(acknowledgedCount, acknowledged);
+        congestionWindow.onAcknowledged(newlyAcknowledged, nextPacketId - 1 - acknowledgedCount);
+
+        // the window may have opened up
         Packet maybePacket;
-        while ((maybePacket = forceMakeAckPacket()) != null) {
-            sendThread.sendPacket(maybePacket, destination);
+        while ((maybePacket = tryMakePacket()) != null) {
+            sendThread.sendPacket(maybePacket, this);
         }
-        while ((maybePacket = forceMakePacket()) != null) {
-            sendThread.sendPacket(maybePacket, destination);
+    }
+
+    // called by the SendThread for every acknowledged packet, holding the lock
+    void onPacketAcknowledged(SentMessage[] messages) {
+        for (SentMessage message : messages) {
+            if (--message.unacknowledgedPackets == 0 && message.fullyPacked) {
+                unacknowledgedBytes -= message.length;
+                newlyAcknowledged.add(message);
+            }
+        }
+    }
+
+    // loss signal for congestion control
+    synchronized void onRetransmissionTimeout(int packetId) {
+        congestionWindow.onLoss(packetId, nextPacketId);
+    }
+
+    // sends whatever has waited for its linger deadline, called periodically by the SendThread
+    public void flushExpired(long now) {
+        Packet maybePacket;
+        if ((maybePacket = expiredAckPacket(now)) != null) {
+            sendThread.sendPacket(maybePacket, this);
+        }
+        while ((maybePacket = expiredPacket(now)) != null) {
+            sendThread.sendPacket(maybePacket, this);
         }
     }
 
@@ -74,82 +210,115 @@ public class SendQueue {
 //    }
 
     // makes a packet even if it would be underfilled
-    // only returns null if there are no fragments at all
+    // only returns null if there are no fragments at all or if the congestion window is full
     private synchronized Packet forceMakePacket() {
-        if (queue.isEmpty()) {
+        if (queue.isEmpty() || !congestionWindow.hasRoom()) {
             return null;
         }
 
-        ArrayList<MessageFragment> fragments = new ArrayList<>();
-        int totalLength = 0;
+        // headers and payload slices are written straight into the packet buffer
+        ByteBuffer buffer = bufferPool.acquire();
+        int packetId = nextPacketId++;
+        congestionWindow.onSend();
+        Packet.writeHeader(buffer, sourceId, packetId);
+        // pending acks ride along, only a complete sack makes a dedicated ack packet unnecessary
+        if (receiveWindow.writeAck(buffer, Constants.PL_PIGGYBACK_SACK_LENGTH)) {
+            pendingAcks = 0;
+        }
+        int fragmentsOffset = buffer.position();
+
+        int previousMessageId = 0; // message ids are encoded relative to the previous fragment
         do {
-            int spaceRemaining = Constants.MAX_PACKET_SIZE - totalLength - 8;
-            if (spaceRemaining <= MessageFragment.METADATA_LENGTH) {
-                break;
-            }
+            int spaceRemaining = Constants.PL_DATAGRAM_SIZE - buffer.position();
 
 //            System.out.println("space remaining: " + spaceRemaining);
-            MessageFragment nextFragment = queue.poll();
-            int nextFragmentSize = nextFragment.size();
-            totalQueueSize -= nextFragmentSize;
-            if (nextFragmentSize <= spaceRemaining) {
-                totalLength += nextFragmentSize;
-                fragments.add(nextFragment);
-            } else {
-                MessageFragment[] halves = nextFragment.split(spaceRemaining);
-                fragments.add(halves[0]);
-                totalLength += halves[0].size();
+            MessageFragment nextFragment = queue.peek();
+            if (nextFragment.size(previousMessageId) > spaceRemaining) {
+                // the first half is sized for the largest possible metadata
+                int firstHalfLength = spaceRemaining - MessageFragment.MAX_METADATA_LENGTH;
+                if (firstHalfLength <= 0) {
+                    break;
+                }
+                queue.poll();
+                totalQueueSize -= nextFragment.size();
+                MessageFragment[] halves = nextFragment.split(firstHalfLength);
+                nextFragment = halves[0];
                 queue.offerFirst(halves[1]);
                 totalQueueSize += halves[1].size();
 //                System.out.println("queue +1= " + halves[1].size());
+            } else {
+                queue.poll();
+                totalQueueSize -= nextFragment.size();
             }
+            nextFragment.writeTo(buffer, previousMessageId);
+            previousMessageId = nextFragment.messageId;
+
+            SentMessage message = nextFragment.message;
+            message.unacknowledgedPackets++;
+            message.fullyPacked = nextFragment.isLast();
+            packing.add(message);
 
 //            testQueue();
         } while (!queue.isEmpty());
 
-        byte[] packetBytes = new byte[8 + totalLength];
-        int packetId = nextPacketId++;
-        BigEndianCoder.encodeInt(packetId, packetBytes, 0);
-        BigEndianCoder.encodeInt(sourceId, packetBytes, 4);
+        // the leftovers start lingering anew, otherwise a steady stream would
+        // never fill another packet once the first deadline had passed
+        oldestQueuedAt = System.nanoTime();
 
-        int currentIdx = 8;
-        for (MessageFragment fragment : fragments) {
-            byte[] fragmentBytes = fragment.getBytes();
-            System.arraycopy(fragmentBytes, 0, packetBytes, currentIdx, fragmentBytes.length);
-            currentIdx += fragmentBytes.length;
+        if (compressor != null && compressor.compress(buffer, fragmentsOffset)) {
+            Packet.setFlag(buffer, Packet.FLAG_COMPRESSED);
         }
 
-        return new Packet(packetBytes);
+        buffer.flip();
+        SentMessage[] messages = packing.toArray(NO_MESSAGES);
+        packing.clear();
+        return new Packet(packetId, buffer, messages);
     }
 
-    // only makes a packet if there are enough fragments for a full one,
-    // otherwise returns null
+    // only makes a packet if there are enough fragments to reach the size target,
+    // otherwise returns null and leaves them to flushExpired
     private synchronized Packet tryMakePacket() {
-        if (totalQueueSize >= Constants.MAX_PACKET_SIZE) {
+        if (totalQueueSize >= policy.targetPacketSize) {
             return forceMakePacket();
         }
+        return null;
+    }
 
+    // makes a packet if the oldest fragment has lingered long enough
+    private synchronized Packet expiredPacket(long now) {
+        if (!queue.isEmpty() && now - oldestQueuedAt >= policy.lingerNanos) {
+            return forceMakePacket();
+        }
         return null;
     }
 
+    // a single ack packet confirms everything received so far
     private synchronized Packet forceMakeAckPacket() {
-        if (ackQueue.isEmpty()) {
+        if (pendingAcks == 0) {
             return null;
         }
 
-        int takeAcks = Math.min((Constants.MAX_PACKET_SIZE - 8) / 4, ackQueue.size());
-        byte[] bytes = new byte[12 + takeAcks * 4];
-        BigEndianCoder.encodeInt(0, bytes, 0);
-        BigEndianCoder.encodeInt(sourceId, bytes, 4);
-        BigEndianCoder.encodeInt(takeAcks, bytes, 8);
-        for (int i = 0; i < takeAcks; i += 1) {
-            BigEndianCoder.encodeInt(ackQueue.poll(), bytes, i * 4 + 12);
-        }
-        return new Packet(bytes);
+        pendingAcks = 0;
+        ByteBuffer buffer = bufferPool.acquire();
+        Packet.writeHeader(buffer, sourceId, 0);
+        receiveWindow.writeAck(buffer, Constants.PL_DATAGRAM_SIZE - Packet.MAX_METADATA_SIZE); // as much as fits after the largest header
+        buffer.flip();
+        return new Packet(0, buffer, NO_MESSAGES);
     }
 
     private synchronized Packet tryMakeAckPacket() {
-        if (ackQueue.size() >= Constants.PL_MIN_ACKS_PER_PACKET) {
+        if (pendingAcks++ == 0) {
+            oldestPendingAckAt = System.nanoTime();
+        }
+        if (pendingAcks >= policy.acksPerPacket) {
+            return forceMakeAckPacket();
+        }
+        return null;
+    }
+
+    // makes an ack packet if the oldest pending ack has lingered long enough
+    private synchronized Packet expiredAckPacket(long now) {
+        if (pendingAcks > 0 && now - oldestPendingAckAt >= policy.lingerNanos) {
             return forceMakeAckPacket();
         }
         return null;
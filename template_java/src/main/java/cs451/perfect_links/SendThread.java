@@ -1,99 +1,228 @@
 package cs451.perfect_links;
 
 import cs451.Constants;
-import cs451.base.FullAddress;
+import cs451.base.BufferPool;
+import cs451.base.LongObjectMap;
+import cs451.base.TimerWheel;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.util.*;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.concurrent.TimeUnit.*;
 
 public class SendThread {
-    private final DatagramSocket socket;
+    private final BufferPool bufferPool;
 
-    private final Map<Integer, DatagramPacket> sendingPackets = new ConcurrentHashMap<>();
+    // indexed by key(destinationId, packetId), guarded by itself
+    private final LongObjectMap<InFlightPacket> sendingPackets = new LongObjectMap<>(1024);
+    // retransmission deadlines of the same packets, also guarded by sendingPackets
+    private final TimerWheel<InFlightPacket> retransmissionTimers;
+    // packets due for retransmission, only used by run()
+    private final InFlightPacket[] due = new InFlightPacket[Constants.PL_SENDING_BATCH_SIZE];
 
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Constants.PL_NUM_SENDER_THREADS);
     private ScheduledFuture<?> taskHandle = null;
 
+    // packets waiting to be put on the wire, the drainer always empties a lane before
+    // looking at the next one: acks first so the other side doesn't time out and
+    // retransmit, then first transmissions, retransmissions only use what's left
+    private static final int ACK_LANE = 0;
+    private static final int FIRST_SEND_LANE = 1;
+    private static final int RETRANSMISSION_LANE = 2;
+    private final List<Queue<InFlightPacket>> lanes = List.of(
+            new ConcurrentLinkedQueue<>(),
+            new ConcurrentLinkedQueue<>(),
+            new ConcurrentLinkedQueue<>()
+    );
+    private final Semaphore queuedPackets = new Semaphore(0); // one permit per packet in the lanes
+    private final Thread drainer = new Thread(this::drain, "send-lane-drainer");
+
+    private final int interval; // ms
     private final Runnable flushSendQueues;
 
-    public SendThread(DatagramSocket socket, Runnable flushSendQueues) {
-        this.socket = socket;
+    public SendThread(BufferPool bufferPool, int interval, Runnable flushSendQueues) {
+        this.bufferPool = bufferPool;
+        this.interval = interval;
         this.flushSendQueues = flushSendQueues;
+        // a tick per run, finer ticks would only be looked at that often anyway
+        this.retransmissionTimers = new TimerWheel<>(Constants.PL_TIMER_WHEEL_SLOTS, MILLISECONDS.toNanos(interval), System.nanoTime());
     }
 
     public void start() {
         if (taskHandle != null) {
             throw new IllegalStateException("multiple start");
         }
-        taskHandle = scheduler.scheduleAtFixedRate(this::run, 0, Constants.PL_SENDING_INTERVAL, MILLISECONDS);
+        taskHandle = scheduler.scheduleAtFixedRate(this::run, 0, interval, MILLISECONDS);
+        drainer.setDaemon(true);
+        drainer.start();
     }
 
     public void interrupt() {
         if (taskHandle != null) {
             taskHandle.cancel(true);
         }
+        drainer.interrupt();
     }
 
-    private DatagramPacket makeUdpPacket(Packet packet, FullAddress destination) {
-        return new DatagramPacket(
-                packet.bytes,
-                packet.bytes.length,
-                destination.address,
-                destination.port
-        );
+    // packets are sent straight from their pooled direct buffer, ack packets give it back right away,
+    // normal packets keep it for retransmissions until they are acknowledged, their retransmission
+    // timer is only scheduled once they are first put on the wire, see transmit()
+    public void sendPacket(Packet packet, SendQueue owner) {
+        InFlightPacket inFlight = new InFlightPacket(packet.packetId, packet.buffer, packet.messages, owner);
+        if (packet.packetId == 0) {
+            enqueue(ACK_LANE, inFlight);
+            return;
+        }
+
+        synchronized (sendingPackets) {
+            sendingPackets.put(key(owner.destinationId, packet.packetId), inFlight);
+        }
+        enqueue(FIRST_SEND_LANE, inFlight);
     }
 
-    public void sendPacket(Packet packet, FullAddress destination) {
-        DatagramPacket udpPacket = makeUdpPacket(packet, destination);
+    private void enqueue(int lane, InFlightPacket packet) {
+        lanes.get(lane).offer(packet);
+        queuedPackets.release();
+    }
+
+    // the only place packets are put on the wire
+    private void drain() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                queuedPackets.acquire();
+                InFlightPacket next = null;
+                for (Queue<InFlightPacket> lane : lanes) {
+                    next = lane.poll();
+                    if (next != null) {
+                        break;
+                    }
+                }
+
+                // a packet may get acknowledged while it waits, then send() does nothing
+                transmit(next);
+            }
+        } catch (InterruptedException e) {
+            // interrupted
+        }
+    }
 
-        if (packet.packetId != 0) {
-            // for non-ack packets
-            sendingPackets.put(packet.packetId, udpPacket);
+    // puts a packet from the lanes on the wire, only ever called by the draining thread,
+    // returns false iff the channel is non-blocking and had no room for it
+    private boolean transmit(InFlightPacket packet) {
+        boolean first = packet.packetId != 0 && !packet.sent;
+        if (first) {
+            // stamped before sending so that an acknowledgement can't overtake it
+            packet.stampFirstSend(System.nanoTime());
+        }
+        if (!packet.send()) {
+            return false;
         }
 
-        try {
-            socket.send(udpPacket);
-        } catch (IOException ignore) {
+        if (packet.packetId == 0) {
+            packet.release(bufferPool);
+        } else if (first) {
+            packet.sent = true;
+            synchronized (sendingPackets) {
+                // unless it has been acknowledged in the meantime
+                if (!packet.acknowledged) {
+                    retransmissionTimers.schedule(packet, packet.deadline);
+                }
+            }
         }
+        return true;
     }
 
-    public void acknowledge(int packetId) {
-        sendingPackets.remove(packetId);
+    private static long key(int destinationId, int packetId) {
+        return (long) destinationId << 32 | (packetId & 0xFFFF_FFFFL);
     }
 
-    private final AtomicInteger batch = new AtomicInteger(0);
+    // must hold the sendingPackets lock as well as the owner's
+    private void release(SendQueue owner, int packetId, long now) {
+        InFlightPacket removed = sendingPackets.remove(key(owner.destinationId, packetId));
+        if (removed == null) {
+            return;
+        }
+        retransmissionTimers.cancel(removed);
+        removed.acknowledged = true;
+        removed.release(bufferPool);
+        owner.onPacketAcknowledged(removed.messages);
+
+        // only packets that were never retransmitted give an unambiguous sample
+        if (removed.retransmissions == 0) {
+            owner.rttEstimator.sample(now - removed.firstSentAt);
+        }
+    }
+
+    // releases packets [fromPacketId, toPacketId) sent to the owner's destination, holding the owner's lock
+    public void acknowledgeRange(SendQueue owner, int fromPacketId, int toPacketId) {
+        long now = System.nanoTime();
+        synchronized (sendingPackets) {
+            for (int packetId = fromPacketId; packetId < toPacketId; packetId++) {
+                release(owner, packetId, now);
+            }
+        }
+    }
+
+    // releases the first count packets of packetIds sent to the owner's destination, holding the owner's lock
+    public void acknowledgeAll(SendQueue owner, int[] packetIds, int count) {
+        long now = System.nanoTime();
+        synchronized (sendingPackets) {
+            for (int i = 0; i < count; i++) {
+                release(owner, packetIds[i], now);
+            }
+        }
+    }
+
+    // non-blocking counterpart of the drainer for the EventLoop, sends from the lanes in the
+    // same order until they are empty or a channel is full, returns true iff they were emptied
+    boolean drainAvailable() {
+        for (Queue<InFlightPacket> lane : lanes) {
+            InFlightPacket next;
+            while ((next = lane.peek()) != null) {
+                if (!transmit(next)) {
+                    return false;
+                }
+                lane.poll();
+                queuedPackets.tryAcquire();
+            }
+        }
+        return true;
+    }
+
+    // retransmits the packets whose deadline has passed, each with its own
+    // exponentially backed-off timeout, at most PL_SENDING_BATCH_SIZE per run,
+    // the others are pushed back to the next run
     public void run() {
         // TODO: decouple this
         flushSendQueues.run();
 
-        if (sendingPackets.isEmpty()) {
-            return;
+        long now = System.nanoTime();
+        int numDue;
+        synchronized (sendingPackets) {
+            numDue = retransmissionTimers.expire(now, due);
         }
 
-        int currentBatch = batch.getAndIncrement();
-        int batchStart = currentBatch * Constants.PL_SENDING_BATCH_SIZE;
-        if (batchStart >= sendingPackets.size()) {
-            batch.set(0);
-            batchStart = 0;
+        // the owners' locks can't be taken while holding sendingPackets
+        for (int i = 0; i < numDue; i++) {
+            InFlightPacket inFlight = due[i];
+            inFlight.owner.onRetransmissionTimeout(inFlight.packetId);
+            inFlight.retransmissions++;
+            inFlight.deadline = now + inFlight.owner.rttEstimator.rto(inFlight.retransmissions);
         }
-        int batchEnd = batchStart + Constants.PL_SENDING_BATCH_SIZE;
 
-        sendingPackets
-                .values()
-                .stream()
-                .skip(batchStart)
-                .limit(batchEnd)
-                .forEach(packet -> {
-                    try {
-                        socket.send(packet);
-                    } catch (IOException ignored) {
-                    }
-                });
+        // a packet may get acknowledged in the meantime, then it's neither
+        // rescheduled nor actually sent
+        synchronized (sendingPackets) {
+            for (int i = 0; i < numDue; i++) {
+                if (!due[i].acknowledged) {
+                    retransmissionTimers.schedule(due[i], due[i].deadline);
+                }
+            }
+        }
+        for (int i = 0; i < numDue; i++) {
+            enqueue(RETRANSMISSION_LANE, due[i]);
+            due[i] = null;
+        }
     }
 }
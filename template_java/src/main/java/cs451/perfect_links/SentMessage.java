@@ -0,0 +1,17 @@
+package cs451.perfect_links;
+
+import java.util.concurrent.CompletableFuture;
+
+// a message handed to PerfectLink, acknowledged once every packet
+// carrying a part of it has been, counters are guarded by the SendQueue
+class SentMessage {
+    final int length; // bytes
+    final CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+
+    int unacknowledgedPackets = 0;
+    boolean fullyPacked = false; // the last fragment is in a packet
+
+    SentMessage(int length) {
+        this.length = length;
+    }
+}
@@ -0,0 +1,58 @@
+package cs451.uniform_reliable_broadcast;
+
+import cs451.Constants;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// adaptive limit on the messages this process has broadcast but not delivered yet, counted in messages,
+// grows like slow start then additively while own messages keep being delivered promptly, and is halved
+// (at most once per window of messages) when one takes much longer than the fastest seen so far,
+// which means messages are queuing up somewhere, not thread safe, guarded by its URB
+class BroadcastWindow {
+    private static final int MIN_WINDOW = Constants.URB_MIN_WINDOW;
+    private static final int MAX_WINDOW = Constants.URB_MAX_WINDOW;
+    private static final long BACKLOG_DELAY = MILLISECONDS.toNanos(Constants.URB_BACKLOG_DELAY);
+
+    private double window = Constants.URB_INITIAL_WINDOW;
+    private double slowStartThreshold = MAX_WINDOW;
+
+    // own messages broadcast but not delivered yet
+    private int inFlight = 0;
+    private long minLatency = Long.MAX_VALUE; // ns, from broadcast to delivery
+    // backlogs of messages below this id belong to a window that was already reduced
+    private int recoveryPoint = 0;
+
+    boolean hasRoom() {
+        return inFlight < (int) window;
+    }
+
+    void onBroadcast() {
+        inFlight++;
+    }
+
+    // nextUrbMessageId is the id the next own message will get
+    void onDelivered(int urbMessageId, long latency, int nextUrbMessageId) {
+        inFlight--;
+        minLatency = Math.min(minLatency, latency);
+
+        if (latency > 2 * minLatency + BACKLOG_DELAY) {
+            if (urbMessageId >= recoveryPoint) {
+                slowStartThreshold = Math.max(window / 2, MIN_WINDOW);
+                window = slowStartThreshold;
+                recoveryPoint = nextUrbMessageId;
+            }
+            return;
+        }
+
+        if (window < slowStartThreshold) {
+            window += 1;
+        } else {
+            window += 1 / window;
+        }
+        window = Math.min(window, MAX_WINDOW);
+    }
+
+    int size() {
+        return (int) window;
+    }
+}
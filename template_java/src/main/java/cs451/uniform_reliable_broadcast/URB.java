@@ -1,143 +1,345 @@
 package cs451.uniform_reliable_broadcast;
 
 import cs451.Constants;
-import cs451.base.BigEndianCoder;
 import cs451.base.FullAddress;
-import cs451.base.Pair;
+import cs451.base.LongObjectMap;
+import cs451.base.SequenceSet;
+import cs451.base.VarInt;
 import cs451.message.PLMessage;
 import cs451.message.URBMessage;
 import cs451.perfect_links.PerfectLink;
 
-import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Consumer;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// processes that have acknowledged a message, as a bitset indexed by process id,
+// acknowledging is lock free and tells exactly one caller that the majority is reached
 class AckCounter {
-    final URBMessage message;
-    Set<Integer> acknowledged = new HashSet<>();
+    // the rest is guarded by the URB
+    URBMessage message; // null until the payload has been received
+    byte[] data; // the DATA record, kept to answer pulls
+    boolean majorityReached = false; // before the payload in some cases
+    boolean delivered = false;
+    long broadcastAt; // nanoTime, only for own messages
+    long missingSince; // nanoTime, only while the payload is missing
+    int pulledFrom = 0; // last process asked for the payload
+
+    private final AtomicLongArray acknowledged;
+    private final AtomicInteger count = new AtomicInteger();
+    private final int majority;
+
+    // process ids go from 1 to totalNumProcesses
+    AckCounter(int totalNumProcesses) {
+        this.acknowledged = new AtomicLongArray((totalNumProcesses >> 6) + 1);
+        this.majority = totalNumProcesses / 2 + 1;
+    }
+
+    // returns true iff this acknowledgement is the one that makes a majority
+    boolean acknowledge(int processId) {
+        int word = processId >> 6;
+        long bit = 1L << processId;
+        long current;
+        do {
+            current = acknowledged.get(word);
+            if ((current & bit) != 0) {
+                return false;
+            }
+        } while (!acknowledged.compareAndSet(word, current, current | bit));
+
+        return count.incrementAndGet() == majority;
+    }
+
+    int count() {
+        return count.get();
+    }
 
-    AckCounter(URBMessage message) {
-        this.message = message;
+    // the first process after `after` known to have the payload, wrapping around, 0 if none
+    int nextAcknowledger(int after, int totalNumProcesses) {
+        for (int i = 1; i <= totalNumProcesses; i++) {
+            int pid = (after + i - 1) % totalNumProcesses + 1;
+            if ((acknowledged.get(pid >> 6) & 1L << pid) != 0) {
+                return pid;
+            }
+        }
+        return 0;
     }
 }
 
 // URB messages are structured as follows:
-// - urbMessageId - 4 bytes
-// - urbSourceId  - 4 bytes
-// - text         - n bytes
+// - kind         - 1 byte
+// - urbMessageId - varint
+// - urbSourceId  - varint
+// - text         - n bytes, only in DATA records
 // note that urbMessageId and urbSourceId are different and have
 // distinct meaning from messageId and sourceId (which are used
 // by PerfectLink)
+//
+// DATA carries the message, ACK only tells that its sender has it and PULL asks for
+// the DATA, receiving either of the first two counts as an acknowledgement from the
+// sender, by default every process relays the DATA to everyone the first time it gets
+// it, with URB_ACK_ONLY_RELAY it relays ACKs instead and a process that hears of a
+// message without getting it pulls it from one of the processes that acknowledged it
 public class URB {
     private static final boolean DEBUG_PRINT = false;
 
-    private static final int HEADER_SIZE = 8; // bytes
+    private static final byte KIND_DATA = 0;
+    private static final byte KIND_ACK = 1;
+    private static final byte KIND_PULL = 2;
 
     private final int processId;
     private final Map<Integer, FullAddress> addresses;
     private final int totalNumProcesses;
 //    private final FullAddress[] otherAddresses;
     private final PerfectLink perfectLink;
-    // TODO: benchmark whether waiting is really needed
+    // own messages wait here while the window is full
     private final Queue<String> waiting = new LinkedBlockingQueue<>();
-    // (urbMessageId, urbSourceId): processes that acknowledge
-    private final Map<Pair<Integer, Integer>, AckCounter> received = new ConcurrentHashMap<>();
+    private final BroadcastWindow window = new BroadcastWindow();
+    // messages received but not yet delivered, indexed by key(urbMessageId, urbSourceId),
+    // with URB_ACK_ONLY_RELAY they are kept until every process has acknowledged them
+    // so that the DATA can be pulled, or until URB_MAX_RETAINED later deliveries
+    private final LongObjectMap<AckCounter> received = new LongObjectMap<>(64);
+    // keys of the delivered messages still kept, as a ring where the oldest is evicted first,
+    // a crashed process never acknowledges so this is what bounds received
+    private final long[] retained;
+    private int nextRetained = 0;
+    // messages acknowledged by someone whose DATA hasn't been received, same keys
+    private final LongObjectMap<AckCounter> missing = new LongObjectMap<>(64);
+    private final ScheduledExecutorService puller;
 
-    // (urbMessageId, urbSourceId)
-    private final Set<Pair<Integer, Integer>> delivered = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // delivered urbMessageIds, indexed by urbSourceId
+    private final SequenceSet[] delivered;
     private int nextUrbMessageId = 1;
 
     private final Consumer<URBMessage> deliverCallback;
 
     // allProcesses includes this process
-    public URB(int processId, Map<Integer, FullAddress> addresses, DatagramSocket socket, Consumer<URBMessage> deliverCallback) {
+    public URB(int processId, Map<Integer, FullAddress> addresses, List<DatagramChannel> channels, Consumer<URBMessage> deliverCallback) {
         this.processId = processId;
         this.addresses = addresses;
         totalNumProcesses = addresses.size();
-        perfectLink = new PerfectLink(processId, addresses, socket, this::onPlDeliver);
+        // process ids go from 1 to totalNumProcesses
+        delivered = new SequenceSet[totalNumProcesses + 1];
+        for (int pid = 1; pid <= totalNumProcesses; pid++) {
+            delivered[pid] = new SequenceSet(64, Constants.URB_MAX_DELIVERY_GAP);
+        }
+        perfectLink = new PerfectLink(processId, addresses, channels, this::onPlDeliver);
         this.deliverCallback = deliverCallback;
+
+        if (Constants.URB_ACK_ONLY_RELAY) {
+            retained = new long[Constants.URB_MAX_RETAINED];
+            puller = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "urb-puller");
+                thread.setDaemon(true);
+                return thread;
+            });
+            puller.scheduleWithFixedDelay(this::pullMissing, Constants.URB_PULL_DELAY, Constants.URB_PULL_DELAY, MILLISECONDS);
+        } else {
+            retained = null;
+            puller = null;
+        }
     }
 
-    private synchronized void onPlDeliver(PLMessage message) {
+    private static long key(int urbMessageId, int urbSourceId) {
+        return (long) urbSourceId << 32 | (urbMessageId & 0xFFFF_FFFFL);
+    }
+
+    private static byte[] record(byte kind, int urbMessageId, int urbSourceId, byte[] text) {
+        int headerSize = 1 + VarInt.size(urbMessageId) + VarInt.size(urbSourceId);
+        byte[] bytes = new byte[headerSize + text.length];
+        bytes[0] = kind;
+        VarInt.encode(urbSourceId, bytes, VarInt.encode(urbMessageId, bytes, 1));
+        System.arraycopy(text, 0, bytes, headerSize, text.length);
+        return bytes;
+    }
+
+    private void onPlDeliver(PLMessage message) {
         byte[] bytes = message.getTextBytes();
 
         // in this case sourceId refers to the process that sent
         // this particular message while urbSourceId refers to the
         // process that originally broadcast the message
-        int urbMessageId = BigEndianCoder.decodeInt(bytes, 0);
-        int urbSourceId = BigEndianCoder.decodeInt(bytes, 4);
+        byte kind = bytes[0];
+        int urbMessageId = VarInt.decode(bytes, 1);
+        int urbSourceId = VarInt.decode(bytes, 1 + VarInt.size(urbMessageId));
+        int headerSize = 1 + VarInt.size(urbMessageId) + VarInt.size(urbSourceId);
 
         if (DEBUG_PRINT) {
-            System.out.println("PL DELIVER (" + urbMessageId + " urb-FROM " + urbSourceId + ") pl-FROM " + message.sourceId);
+            System.out.println("PL DELIVER " + kind + " (" + urbMessageId + " urb-FROM " + urbSourceId + ") pl-FROM " + message.sourceId);
         }
 
-        Pair<Integer, Integer> key = new Pair<>(urbMessageId, urbSourceId);
-        if (!delivered.contains(key)) {
-            if (DEBUG_PRINT) {
-                System.out.println("> not yet delivered");
-            }
-            boolean[] rebroadcast = {false};
+        long key = key(urbMessageId, urbSourceId);
+        if (kind == KIND_PULL) {
+            answerPull(key, message.sourceId);
+            return;
+        }
 
-//            System.out.println("URB RECEIVE " + urbMessageId + " FROM " + urbSourceId);
-            AckCounter ackCounter = received.computeIfAbsent(key, ignored -> {
+        boolean relay = false;
+        AckCounter ackCounter;
+        synchronized (this) {
+            ackCounter = received.get(key);
+            if (ackCounter == null) {
+                if (delivered[urbSourceId].contains(urbMessageId)) {
+                    if (DEBUG_PRINT) {
+                        System.out.println("> already urb-delivered, ignore");
+                    }
+                    return;
+                }
                 if (DEBUG_PRINT) {
                     System.out.println("> message is new, create ack counter");
                 }
-                rebroadcast[0] = true;
-                String text = new String(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
-                AckCounter counter = new AckCounter(new URBMessage(urbMessageId, urbSourceId, text));
-                counter.acknowledged.add(processId);
-                return counter;
-            });
+                ackCounter = new AckCounter(totalNumProcesses);
+                ackCounter.missingSince = System.nanoTime();
+                received.put(key, ackCounter);
+                if (Constants.URB_ACK_ONLY_RELAY) {
+                    missing.put(key, ackCounter);
+                }
+            }
 
-            ackCounter.acknowledged.add(message.sourceId);
-            if (ackCounter.acknowledged.size() > totalNumProcesses / 2) {
-                if (DEBUG_PRINT) {
-                    System.out.println("> ack counter over threshold (" + ackCounter.acknowledged.size() + "), deliver");
+//            System.out.println("URB RECEIVE " + urbMessageId + " FROM " + urbSourceId);
+            if (kind == KIND_DATA && ackCounter.message == null) {
+                relay = true;
+                String text = new String(bytes, headerSize, bytes.length - headerSize);
+                ackCounter.message = new URBMessage(urbMessageId, urbSourceId, text);
+                ackCounter.data = bytes;
+                if (Constants.URB_ACK_ONLY_RELAY) {
+                    missing.remove(key);
                 }
-                received.remove(key);
-                delivered.add(key);
-                deliverCallback.accept(ackCounter.message);
-//                rebroadcast[0] = false;
-
-                // broadcast next message in queue
-                String msg = waiting.poll();
-                if (msg != null) {
-                    if (DEBUG_PRINT) {
-                        System.out.println("> broadcast next message in queue \"" + msg + "\"");
-                    }
-                    broadcast(msg);
+                // a majority may have been reached while the payload was missing
+                if (ackCounter.acknowledge(processId) || ackCounter.majorityReached) {
+                    deliver(key, ackCounter);
                 }
             }
+        }
 
-            // TODO: rebroadcast to everyone except the original sender and the current sender
-            //  for those two, just send an ack
-            // rebroadcast
-            if (rebroadcast[0]) {
-                if (DEBUG_PRINT) {
-                    System.out.println("> rebroadcast");
-                }
-                broadcastSend(message.getTextBytes());
+        // only the acknowledgement that makes the majority delivers, the others don't need the lock
+        if (ackCounter.acknowledge(message.sourceId)) {
+            if (DEBUG_PRINT) {
+                System.out.println("> ack counter over threshold (" + ackCounter.count() + "), deliver");
             }
+            deliver(key, ackCounter);
+        } else if (Constants.URB_ACK_ONLY_RELAY && ackCounter.count() == totalNumProcesses) {
+            forget(key, ackCounter);
+        }
+
+        if (relay) {
+            if (DEBUG_PRINT) {
+                System.out.println("> relay");
+            }
+            broadcastSend(Constants.URB_ACK_ONLY_RELAY ? record(KIND_ACK, urbMessageId, urbSourceId, new byte[0]) : bytes);
+        }
+    }
+
+    private synchronized void deliver(long key, AckCounter ackCounter) {
+        URBMessage message = ackCounter.message;
+        if (message == null) {
+            // delivered once the payload arrives
+            ackCounter.majorityReached = true;
+            return;
+        }
+
+        // an id that isn't recorded would be delivered again by a later relay
+        if (!delivered[message.sourceId].add(message.messageId)) {
+            throw new IllegalStateException("can't record the delivery of " + message.messageId + " from " + message.sourceId
+                    + ", it's more than URB_MAX_DELIVERY_GAP past the oldest undelivered message");
+        }
+        ackCounter.delivered = true;
+        if (!Constants.URB_ACK_ONLY_RELAY || ackCounter.count() == totalNumProcesses) {
+            received.remove(key);
         } else {
+            retain(key);
+        }
+        deliverCallback.accept(message);
+
+        if (message.sourceId == processId) {
+            window.onDelivered(message.messageId, System.nanoTime() - ackCounter.broadcastAt, nextUrbMessageId);
+            if (DEBUG_PRINT) {
+                System.out.println("> own message delivered, window is now " + window.size());
+            }
+            sendWaiting();
+        }
+    }
+
+    // everyone has the message, nobody will pull it anymore
+    private synchronized void forget(long key, AckCounter ackCounter) {
+        if (ackCounter.delivered) {
+            received.remove(key);
+        }
+    }
+
+    // keeps a delivered message for pulls, evicting the one delivered URB_MAX_RETAINED deliveries ago
+    private void retain(long key) {
+        int slot = nextRetained++ & (retained.length - 1);
+        // 0 is never a key since process ids start at 1, and removing a forgotten key does nothing
+        if (retained[slot] != 0) {
+            received.remove(retained[slot]);
+        }
+        retained[slot] = key;
+    }
+
+    private void answerPull(long key, int pid) {
+        byte[] data;
+        synchronized (this) {
+            AckCounter ackCounter = received.get(key);
+            data = ackCounter == null ? null : ackCounter.data;
+        }
+        // otherwise the puller will ask someone else
+        if (data != null) {
+            perfectLink.sendUnbounded(data, pid);
+        }
+    }
+
+    // asks for the payloads that are still missing a while after the first acknowledgement,
+    // each time from the next process known to have them, in case the previous one crashed
+    private void pullMissing() {
+        long now = System.nanoTime();
+        long delay = MILLISECONDS.toNanos(Constants.URB_PULL_DELAY);
+        List<byte[]> pulls = new ArrayList<>();
+        List<Integer> pids = new ArrayList<>();
+        synchronized (this) {
+            for (int slot = 0; slot < missing.capacity(); slot++) {
+                AckCounter ackCounter = missing.valueAt(slot);
+                if (ackCounter == null || now - ackCounter.missingSince < delay) {
+                    continue;
+                }
+                int pid = ackCounter.nextAcknowledger(ackCounter.pulledFrom, totalNumProcesses);
+                if (pid == 0 || pid == processId) {
+                    continue;
+                }
+                ackCounter.pulledFrom = pid;
+                ackCounter.missingSince = now;
+                long key = missing.keyAt(slot);
+                pulls.add(record(KIND_PULL, (int) key, (int) (key >>> 32), new byte[0]));
+                pids.add(pid);
+            }
+        }
+
+        for (int i = 0; i < pulls.size(); i++) {
             if (DEBUG_PRINT) {
-                System.out.println("> already urb-delivered, ignore");
+                System.out.println("PULL FROM " + pids.get(i));
             }
+            perfectLink.sendUnbounded(pulls.get(i), pids.get(i));
         }
     }
 
     private void broadcastSend(byte[] bytes) {
-        int urbMessageId = BigEndianCoder.decodeInt(bytes, 0);
-        int urbSourceId = BigEndianCoder.decodeInt(bytes, 4);
         if (DEBUG_PRINT) {
-            System.out.println("URB SEND " + urbMessageId + " FROM " + urbSourceId);
+            int urbMessageId = VarInt.decode(bytes, 1);
+            int urbSourceId = VarInt.decode(bytes, 1 + VarInt.size(urbMessageId));
+            System.out.println("URB SEND " + bytes[0] + " " + urbMessageId + " FROM " + urbSourceId);
         }
 
         for (int pid : addresses.keySet()) {
             if (pid != processId) {
-                perfectLink.send(bytes, pid);
+                // the window bounds what URB has in flight, waiting here would hold the lock the receiving threads need
+                perfectLink.sendUnbounded(bytes, pid);
             }
         }
     }
@@ -147,32 +349,37 @@ public class URB {
             System.out.println("URB FIRST BROADCAST \"" + msg + "\"");
         }
 
-//        System.out.println("try broadcast message: " + msg);
-        if (received.size() >= Constants.URB_SENDING_BATCH_SIZE) {
-            if (DEBUG_PRINT) {
-                System.out.println("> batch full, enqueue");
-            }
-            waiting.offer(msg);
-        } else {
+        // goes through the queue so that messages keep their order
+        waiting.offer(msg);
+        sendWaiting();
+    }
+
+    // broadcasts queued messages as long as the window allows
+    private synchronized void sendWaiting() {
+        String msg;
+        while (window.hasRoom() && (msg = waiting.poll()) != null) {
             if (DEBUG_PRINT) {
-                System.out.println("> batch has space, send");
+                System.out.println("> window has space, send \"" + msg + "\"");
             }
             int urbMessageId = nextUrbMessageId++;
-            byte[] msgBytes = msg.getBytes();
-            byte[] bytes = new byte[HEADER_SIZE + msgBytes.length];
-            BigEndianCoder.encodeInt(urbMessageId, bytes, 0);
-            BigEndianCoder.encodeInt(processId, bytes, 4);
-            System.arraycopy(msgBytes, 0, bytes, HEADER_SIZE, msgBytes.length);
+            byte[] bytes = record(KIND_DATA, urbMessageId, processId, msg.getBytes());
 
-            AckCounter ackCounter = new AckCounter(new URBMessage(urbMessageId, processId, msg));
-            ackCounter.acknowledged.add(processId);
-            received.put(new Pair<>(urbMessageId, processId), ackCounter);
+            AckCounter ackCounter = new AckCounter(totalNumProcesses);
+            ackCounter.message = new URBMessage(urbMessageId, processId, msg);
+            ackCounter.data = bytes;
+            ackCounter.acknowledge(processId);
+            ackCounter.broadcastAt = System.nanoTime();
+            received.put(key(urbMessageId, processId), ackCounter);
+            window.onBroadcast();
 
             broadcastSend(bytes);
         }
     }
 
     public void close() {
+        if (puller != null) {
+            puller.shutdownNow();
+        }
         perfectLink.close();
     }
 }